@@ -17,12 +17,13 @@
 package com.cyanogenmod.trebuchet;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 
@@ -44,6 +45,13 @@ class AllAppsList {
     /** The list of apps that have been modified since the last notify() call. */
     public ArrayList<ApplicationInfo> modified = new ArrayList<ApplicationInfo>();
 
+    /** The apps in data, by component. */
+    private final HashMap<ComponentName, ApplicationInfo> mComponentIndex =
+            new HashMap<ComponentName, ApplicationInfo>(DEFAULT_APPLICATIONS_NUMBER);
+    /** The apps in data, by package name. */
+    private final HashMap<String, ArrayList<ApplicationInfo>> mPackageIndex =
+            new HashMap<String, ArrayList<ApplicationInfo>>(DEFAULT_APPLICATIONS_NUMBER);
+
     private IconCache mIconCache;
 
     /**
@@ -60,15 +68,46 @@ class AllAppsList {
      * If the app is already in the list, doesn't add it.
      */
     public void add(ApplicationInfo info) {
-        if (findActivity(data, info.componentName)) {
+        if (mComponentIndex.containsKey(info.componentName)) {
             return;
         }
         data.add(info);
         added.add(info);
+
+        mComponentIndex.put(info.componentName, info);
+        final String packageName = info.componentName.getPackageName();
+        ArrayList<ApplicationInfo> infos = mPackageIndex.get(packageName);
+        if (infos == null) {
+            infos = new ArrayList<ApplicationInfo>(1);
+            mPackageIndex.put(packageName, infos);
+        }
+        infos.add(info);
     }
     
+    /**
+     * Replace the app at the given position in data with an updated copy of it, for the same
+     * component, keeping the indexes pointing at the copy.
+     */
+    public void replace(int index, ApplicationInfo info) {
+        final ApplicationInfo old = data.set(index, info);
+        mComponentIndex.remove(old.componentName);
+        mComponentIndex.put(info.componentName, info);
+        final ArrayList<ApplicationInfo> infos =
+                mPackageIndex.get(old.componentName.getPackageName());
+        if (infos != null) {
+            for (int i = 0; i < infos.size(); i++) {
+                if (infos.get(i) == old) {
+                    infos.set(i, info);
+                    break;
+                }
+            }
+        }
+    }
+
     public void clear() {
         data.clear();
+        mComponentIndex.clear();
+        mPackageIndex.clear();
         // TODO: do we clear these too?
         added.clear();
         removed.clear();
@@ -100,37 +139,40 @@ class AllAppsList {
      * Remove the apps for the given apk identified by packageName.
      */
     public void removePackage(String packageName) {
-        final List<ApplicationInfo> data = this.data;
-        for (int i = data.size() - 1; i >= 0; i--) {
-            ApplicationInfo info = data.get(i);
-            final ComponentName component = info.intent.getComponent();
-            if (packageName.equals(component.getPackageName())) {
-                removed.add(info);
-                data.remove(i);
-            }
+        final ArrayList<ApplicationInfo> infos = mPackageIndex.get(packageName);
+        if (infos != null) {
+            remove(new ArrayList<ApplicationInfo>(infos));
         }
-        // This is more aggressive than it needs to be.
-        mIconCache.flush();
+        mIconCache.removePackage(packageName);
     }
 
     /**
      * Add and remove icons for this package which has been updated.
      */
     public void updatePackage(Context context, String packageName) {
+        // The cached titles and icons may be out of date for any activity in this package
+        mIconCache.removePackage(packageName);
+
         final List<ResolveInfo> matches = findActivitiesForPackage(context, packageName);
+        final ArrayList<ApplicationInfo> infos = mPackageIndex.get(packageName);
         if (matches.size() > 0) {
             // Find disabled/removed activities and remove them from data and add them
             // to the removed list.
-            for (int i = data.size() - 1; i >= 0; i--) {
-                final ApplicationInfo applicationInfo = data.get(i);
-                final ComponentName component = applicationInfo.intent.getComponent();
-                if (packageName.equals(component.getPackageName())) {
-                    if (!findActivity(matches, component)) {
-                        removed.add(applicationInfo);
-                        mIconCache.remove(component);
-                        data.remove(i);
+            if (infos != null) {
+                final HashSet<ComponentName> components =
+                        new HashSet<ComponentName>(matches.size());
+                for (ResolveInfo info : matches) {
+                    components.add(new ComponentName(
+                            info.activityInfo.applicationInfo.packageName,
+                            info.activityInfo.name));
+                }
+                final ArrayList<ApplicationInfo> toRemove = new ArrayList<ApplicationInfo>();
+                for (ApplicationInfo applicationInfo : infos) {
+                    if (!components.contains(applicationInfo.componentName)) {
+                        toRemove.add(applicationInfo);
                     }
                 }
+                remove(toRemove);
             }
 
             // Find enabled activities and add them to the adapter
@@ -142,23 +184,37 @@ class AllAppsList {
                 if (applicationInfo == null) {
                     add(new ApplicationInfo(context.getPackageManager(), info, mIconCache, null));
                 } else {
-                    mIconCache.remove(applicationInfo.componentName);
                     mIconCache.getTitleAndIcon(applicationInfo, info, null);
                     modified.add(applicationInfo);
                 }
             }
-        } else {
+        } else if (infos != null) {
             // Remove all data for this package.
-            for (int i = data.size() - 1; i >= 0; i--) {
-                final ApplicationInfo applicationInfo = data.get(i);
-                final ComponentName component = applicationInfo.intent.getComponent();
-                if (packageName.equals(component.getPackageName())) {
-                    removed.add(applicationInfo);
-                    mIconCache.remove(component);
-                    data.remove(i);
+            remove(new ArrayList<ApplicationInfo>(infos));
+        }
+    }
+
+    /**
+     * Remove the supplied apps from data and the indexes, and add them to the removed list.
+     */
+    private void remove(ArrayList<ApplicationInfo> infos) {
+        if (infos.isEmpty()) {
+            return;
+        }
+        for (ApplicationInfo info : infos) {
+            mComponentIndex.remove(info.componentName);
+            final String packageName = info.componentName.getPackageName();
+            final ArrayList<ApplicationInfo> packageInfos = mPackageIndex.get(packageName);
+            if (packageInfos != null) {
+                packageInfos.remove(info);
+                if (packageInfos.isEmpty()) {
+                    mPackageIndex.remove(packageName);
                 }
             }
         }
+        // A single pass over data, rather than one ArrayList.remove() per app
+        data.removeAll(new HashSet<ApplicationInfo>(infos));
+        removed.addAll(infos);
     }
 
     /**
@@ -175,43 +231,10 @@ class AllAppsList {
         return apps != null ? apps : new ArrayList<ResolveInfo>();
     }
 
-    /**
-     * Returns whether <em>apps</em> contains <em>component</em>.
-     */
-    private static boolean findActivity(List<ResolveInfo> apps, ComponentName component) {
-        final String className = component.getClassName();
-        for (ResolveInfo info : apps) {
-            final ActivityInfo activityInfo = info.activityInfo;
-            if (activityInfo.name.equals(className)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Returns whether <em>apps</em> contains <em>component</em>.
-     */
-    private static boolean findActivity(ArrayList<ApplicationInfo> apps, ComponentName component) {
-        for (final ApplicationInfo info : apps) {
-            if (info.componentName.equals(component)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Find an ApplicationInfo object for the given packageName and className.
      */
     private ApplicationInfo findApplicationInfoLocked(String packageName, String className) {
-        for (ApplicationInfo info: data) {
-            final ComponentName component = info.intent.getComponent();
-            if (packageName.equals(component.getPackageName())
-                    && className.equals(component.getClassName())) {
-                return info;
-            }
-        }
-        return null;
+        return mComponentIndex.get(new ComponentName(packageName, className));
     }
 }
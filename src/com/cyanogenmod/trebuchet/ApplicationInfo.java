@@ -24,8 +24,11 @@ import android.content.pm.ResolveInfo;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 
 /**
  * Represents an app in AllAppsView.
@@ -55,6 +58,15 @@ class ApplicationInfo extends ItemInfo {
 
     int flags = 0;
 
+    // Shared by all apps so their title keys can be compared with each other
+    private static Collator sCollator;
+    private static Locale sCollatorLocale;
+
+    // The collation key of the title, and the title and collator it was computed from
+    private CollationKey mTitleKey;
+    private CharSequence mTitleKeySource;
+    private Collator mTitleKeyCollator;
+
     ApplicationInfo() {
         itemType = LauncherSettings.BaseLauncherColumns.ITEM_TYPE_SHORTCUT;
     }
@@ -112,6 +124,33 @@ class ApplicationInfo extends ItemInfo {
         itemType = LauncherSettings.BaseLauncherColumns.ITEM_TYPE_APPLICATION;
     }
 
+    /**
+     * Returns the collation key of the title in the current locale.  It is computed lazily and
+     * only recomputed once the title or the locale changes, so sorting apps by title doesn't
+     * have to collate the title strings on every comparison.
+     */
+    CollationKey getTitleKey() {
+        final Collator collator = getCollator();
+        if (mTitleKey == null || mTitleKeySource != title || mTitleKeyCollator != collator) {
+            final String source = title != null ? title.toString() : "";
+            synchronized (collator) {
+                mTitleKey = collator.getCollationKey(source);
+            }
+            mTitleKeySource = title;
+            mTitleKeyCollator = collator;
+        }
+        return mTitleKey;
+    }
+
+    private static synchronized Collator getCollator() {
+        final Locale locale = Locale.getDefault();
+        if (sCollator == null || !locale.equals(sCollatorLocale)) {
+            sCollator = Collator.getInstance(locale);
+            sCollatorLocale = locale;
+        }
+        return sCollator;
+    }
+
     @Override
     public String toString() {
         return "ApplicationInfo(title=" + title.toString() + ")";
@@ -37,6 +37,8 @@ import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Process;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -92,7 +94,10 @@ class AsyncTaskPageData {
         if (generatedImages != null) {
             if (cancelled) {
                 for (int i = 0; i < generatedImages.size(); i++) {
-                    widgetPreviewLoader.recycleBitmap(items.get(i), generatedImages.get(i));
+                    // A load cancelled part way leaves the unresolved previews null
+                    if (generatedImages.get(i) != null) {
+                        widgetPreviewLoader.recycleBitmap(items.get(i), generatedImages.get(i));
+                    }
                 }
             }
             generatedImages.clear();
@@ -246,7 +251,12 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
 
     // Previews & outlines
     ArrayList<AppsCustomizeAsyncTask> mRunningTasks;
-    private static final int sPageSleepDelay = 200;
+    // Generates the previews of new widgets and shortcuts ahead of time, while we are idle
+    private AsyncTask<Void, Void, Void> mPrewarmPreviewsTask;
+    private boolean mPrewarmPreviewsScheduled;
+    // Loads widget pages in the background, closest to the current page first
+    private static final PageLoadExecutor sPageLoadExecutor =
+            new PageLoadExecutor("launcher-page-loader", 2);
 
     private Runnable mInflateWidgetRunnable = null;
     private Runnable mBindWidgetRunnable = null;
@@ -513,6 +523,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         mWidgetSpacingLayout.calculateCellCount(width, height, maxCellCountX, maxCellCountY);
         mCellCountX = mWidgetSpacingLayout.getCellCountX();
         mCellCountY = mWidgetSpacingLayout.getCellCountY();
+        LauncherModel.updateAllAppsPageItemCount(mCellCountX * mCellCountY);
         updatePageCounts();
 
         // Force a measure to update recalculate the gaps
@@ -544,6 +555,8 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                 }
             });
         }
+
+        schedulePrewarmPreviews();
     }
 
     void showAllAppsCling() {
@@ -636,6 +649,63 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                 new LauncherModel.WidgetAndShortcutNameComparator(mPackageManager));
 
         updatePageCountsAndInvalidateData();
+        schedulePrewarmPreviews();
+    }
+
+    /**
+     * Generates the missing widget and shortcut previews the next time the main thread is idle.
+     */
+    private void schedulePrewarmPreviews() {
+        if (mPrewarmPreviewsScheduled) {
+            return;
+        }
+        mPrewarmPreviewsScheduled = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                mPrewarmPreviewsScheduled = false;
+                prewarmPreviews();
+                return false;
+            }
+        });
+    }
+
+    private void prewarmPreviews() {
+        if (!isDataReady() || mWidgets.isEmpty() || mWidgetPreviewLoader == null) {
+            return;
+        }
+        if (!mRunningTasks.isEmpty()) {
+            // Widget pages are loading, we'll be rescheduled once they are done
+            return;
+        }
+        if (mLauncher.getModel().isLoadingWorkspace()) {
+            schedulePrewarmPreviews();
+            return;
+        }
+        if (!mWidgetPreviewLoader.restorePreviewSize(mWidgetSpacingLayout)) {
+            // We don't know how large previews are until a widget page has been laid out once
+            return;
+        }
+
+        cancelPrewarmPreviews();
+        final WidgetPreviewLoader loader = mWidgetPreviewLoader;
+        final ArrayList<Object> items = new ArrayList<Object>(mWidgets);
+        mPrewarmPreviewsTask = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... args) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                loader.prewarmPreviews(items, this);
+                return null;
+            }
+        };
+        mPrewarmPreviewsTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void cancelPrewarmPreviews() {
+        if (mPrewarmPreviewsTask != null) {
+            mPrewarmPreviewsTask.cancel(false);
+            mPrewarmPreviewsTask = null;
+        }
     }
 
     public void setBulkBind(boolean bulkBind) {
@@ -1080,6 +1150,16 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         cancelAllTasks();
     }
 
+    /**
+     * Releases the previews kept around for the widget pages, once the pages have let go of
+     * theirs.
+     */
+    public void trimWidgetPreviews() {
+        if (mWidgetPreviewLoader != null) {
+            mWidgetPreviewLoader.trimMemory();
+        }
+    }
+
     public void clearAllWidgetPages() {
         cancelAllTasks();
         int count = getChildCount();
@@ -1098,6 +1178,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         while (iter.hasNext()) {
             AppsCustomizeAsyncTask task = iter.next();
             task.cancel(false);
+            sPageLoadExecutor.cancel(task.page);
             iter.remove();
             mDirtyPageContent.set(task.page, true);
 
@@ -1126,6 +1207,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
 
     protected void snapToPage(int whichPage, int delta, int duration) {
         super.snapToPage(whichPage, delta, duration);
+        sPageLoadExecutor.setCurrentPage(whichPage);
         if (mJoinWidgetsApps) {
             updateCurrentTab(whichPage);
 
@@ -1271,42 +1353,37 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
             return Process.THREAD_PRIORITY_LOWEST;
         }
     }
-    private int getSleepForPage(int page) {
-        int pageDiff = getWidgetPageLoadPriority(page);
-        return Math.max(0, pageDiff * sPageSleepDelay);
-    }
     /**
      * Creates and executes a new AsyncTask to load a page of widget previews.
      */
     private void prepareLoadWidgetPreviewsTask(int page, ArrayList<Object> widgets,
             int cellWidth, int cellHeight) {
+        // Pages being looked at come first, pre-generation resumes once they are loaded
+        cancelPrewarmPreviews();
 
-        // Prune all tasks that are no longer needed
+        // Prune all tasks that are no longer needed, including an older load of this page
         Iterator<AppsCustomizeAsyncTask> iter = mRunningTasks.iterator();
         while (iter.hasNext()) {
             AppsCustomizeAsyncTask task = iter.next();
             int taskPage = task.page;
-            if (taskPage < getAssociatedLowerPageBound(mCurrentPage) ||
+            if (taskPage == page ||
+                    taskPage < getAssociatedLowerPageBound(mCurrentPage) ||
                     taskPage > getAssociatedUpperPageBound(mCurrentPage)) {
                 task.cancel(false);
+                sPageLoadExecutor.cancel(taskPage);
                 iter.remove();
             } else {
                 task.setThreadPriority(getThreadPriorityForPage(taskPage));
             }
         }
 
-        // We introduce a slight delay to order the loading of side pages so that we don't thrash
-        final int sleepMs = getSleepForPage(page);
+        // The executor runs the pages closest to the one we are on or snapping to first
+        sPageLoadExecutor.setCurrentPage(mNextPage > -1 ? mNextPage : mCurrentPage);
         AsyncTaskPageData pageData = new AsyncTaskPageData(page, widgets, cellWidth, cellHeight,
             new AsyncTaskCallback() {
                 @Override
                 public void run(AppsCustomizeAsyncTask task, AsyncTaskPageData data) {
                     try {
-                        try {
-                            Thread.sleep(sleepMs);
-                        } catch (Exception e) {
-                            // Ignore
-                        }
                         loadWidgetPreviewsInBackground(task, data);
                     } finally {
                         if (task.isCancelled()) {
@@ -1319,6 +1396,9 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                 @Override
                 public void run(AppsCustomizeAsyncTask task, AsyncTaskPageData data) {
                     mRunningTasks.remove(task);
+                    if (mRunningTasks.isEmpty()) {
+                        schedulePrewarmPreviews();
+                    }
                     if (task.isCancelled()) return;
                     if (!mJoinWidgetsApps) {
                         if (task.page > getPageCount()) return;
@@ -1333,7 +1413,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         AppsCustomizeAsyncTask t = new AppsCustomizeAsyncTask(page, mContentType,
                 AsyncTaskPageData.Type.LoadWidgetPreviewData);
         t.setThreadPriority(getThreadPriorityForPage(page));
-        t.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, pageData);
+        t.executeOnExecutor(sPageLoadExecutor.forPage(page), pageData);
         mRunningTasks.add(t);
     }
 
@@ -1458,10 +1538,12 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                 mWidgetPreviewLoader.setPreviewSize(
                         maxPreviewWidth, maxPreviewHeight, mWidgetSpacingLayout);
                 if (immediate) {
+                    cancelPrewarmPreviews();
                     AsyncTaskPageData data = new AsyncTaskPageData(page, items,
                             maxPreviewWidth, maxPreviewHeight, null, null, mWidgetPreviewLoader);
                     loadWidgetPreviewsInBackground(null, data);
                     onSyncWidgetPageItems(data);
+                    schedulePrewarmPreviews();
                 } else {
                     if (mInTransition) {
                         mDeferredPrepareLoadWidgetPreviewsTasks.add(this);
@@ -1483,21 +1565,12 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
             task.syncThreadPriority();
         }
 
-        // Load each of the widget/shortcut previews
-        ArrayList<Object> items = data.items;
-        ArrayList<Bitmap> images = data.generatedImages;
-        int count = items.size();
-        for (int i = 0; i < count; ++i) {
-            if (task != null) {
-                // Ensure we haven't been cancelled yet
-                if (task.isCancelled()) break;
-                // Before work on each item, ensure that this task is running at the correct
-                // priority
-                task.syncThreadPriority();
-            }
+        // Ensure we haven't been cancelled yet
+        if (task != null && task.isCancelled()) return;
 
-            images.add(mWidgetPreviewLoader.getPreview(items.get(i)));
-        }
+        // Load all the widget/shortcut previews of the page in one go. If the task is cancelled
+        // part way, this still hands over what was resolved so cleanup can recycle it
+        data.generatedImages.addAll(mWidgetPreviewLoader.getPreviews(data.items, task));
     }
 
     private void onSyncWidgetPageItems(AsyncTaskPageData data) {
@@ -2294,6 +2367,10 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         // TODO: Dump information related to current list of Applications, Widgets, etc.
         ApplicationInfo.dumpApplicationInfoList(TAG, "mApps", mApps);
         dumpAppWidgetProviderInfoList(TAG, "mWidgets", mWidgets);
+        if (mWidgetPreviewLoader != null) {
+            mWidgetPreviewLoader.dumpState();
+        }
+        sPageLoadExecutor.dumpState();
     }
 
     private void dumpAppWidgetProviderInfoList(String tag, String label,
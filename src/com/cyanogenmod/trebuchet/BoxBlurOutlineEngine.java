@@ -0,0 +1,211 @@
+package com.cyanogenmod.trebuchet;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+/**
+ * Draws holographic outlines in software. The gaussian blurs of the mask filter chain are
+ * approximated with three passes of a separable box blur, run over alpha planes that are kept
+ * between outlines, so drawing an outline doesn't go through any intermediate bitmap. Only planes
+ * up to icon size are kept; larger ones, such as for widget outlines, are dropped after use.
+ */
+class BoxBlurOutlineEngine implements HolographicOutlineHelper.OutlineEngine {
+    // Same conversion from blur radius to sigma as the mask filters
+    private static final float BLUR_SIGMA_SCALE = 0.57735f;
+    // Pixels with less alpha are shadows, or other partial transparency, rather than the shape
+    private static final int CLIP_ALPHA = 188;
+    // Largest planes kept between outlines, in pixels. Six planes of this size take 1.5MB
+    private static final int MAX_RETAINED_SIZE = 256 * 256;
+
+    private static BoxBlurOutlineEngine sInstance;
+
+    // The pixels of the bitmap, and the alpha planes of the shape and its blurs
+    private int[] mPixels = new int[0];
+    private int[] mShape = new int[0];
+    private int[] mInner = new int[0];
+    private int[] mOuter = new int[0];
+    private int[] mOutline = new int[0];
+    private int[] mScratch = new int[0];
+    private final int[] mBoxRadii = new int[3];
+
+    static synchronized BoxBlurOutlineEngine getInstance() {
+        if (sInstance == null) {
+            sInstance = new BoxBlurOutlineEngine();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Releases the planes kept between outlines, for when memory is low.
+     */
+    static synchronized void trimMemory() {
+        if (sInstance != null) {
+            sInstance.releaseBuffers();
+        }
+    }
+
+    private synchronized void releaseBuffers() {
+        mPixels = new int[0];
+        mShape = new int[0];
+        mInner = new int[0];
+        mOuter = new int[0];
+        mOutline = new int[0];
+        mScratch = new int[0];
+    }
+
+    private void ensureCapacity(int size) {
+        if (mPixels.length < size) {
+            mPixels = new int[size];
+            mShape = new int[size];
+            mInner = new int[size];
+            mOuter = new int[size];
+            mOutline = new int[size];
+            mScratch = new int[size];
+        }
+    }
+
+    public synchronized void applyOutline(Bitmap srcDst, Canvas srcDstCanvas, int color,
+            int outlineColor, boolean clipAlpha, int thickness) {
+        final int width = srcDst.getWidth();
+        final int height = srcDst.getHeight();
+        final int size = width * height;
+        ensureCapacity(size);
+        final int[] pixels = mPixels;
+        final int[] shape = mShape;
+        final int[] inner = mInner;
+        final int[] outer = mOuter;
+        final int[] outline = mOutline;
+
+        srcDst.getPixels(pixels, 0, width, 0, 0, width, height);
+        for (int i = 0; i < size; i++) {
+            final int alpha = pixels[i] >>> 24;
+            shape[i] = clipAlpha && alpha < CLIP_ALPHA ? 0 : alpha;
+            inner[i] = 255 - shape[i];
+        }
+
+        // The glows and the bright outline are blurs of the shape, or its inverse for the inner
+        // glow, each kept only on its own side of the shape's edge
+        blur(shape, outer, width, height,
+                HolographicOutlineHelper.getOuterBlurRadius(thickness));
+        blur(shape, outline, width, height,
+                HolographicOutlineHelper.getOutlineBlurRadius(thickness));
+        blur(inner, inner, width, height,
+                HolographicOutlineHelper.getInnerBlurRadius(thickness));
+
+        final int colorAlpha = color >>> 24;
+        final int colorR = (color >> 16) & 0xFF;
+        final int colorG = (color >> 8) & 0xFF;
+        final int colorB = color & 0xFF;
+        final int outlineAlpha = outlineColor >>> 24;
+        final int outlineR = (outlineColor >> 16) & 0xFF;
+        final int outlineG = (outlineColor >> 8) & 0xFF;
+        final int outlineB = outlineColor & 0xFF;
+        for (int i = 0; i < size; i++) {
+            final int s = shape[i];
+            // Premultiplied, the inner and outer glows are drawn in color, then the outline
+            int layer = inner[i] * s / 255 * colorAlpha / 255;
+            int a = layer;
+            int r = colorR * layer;
+            int g = colorG * layer;
+            int b = colorB * layer;
+
+            layer = outer[i] * (255 - s) / 255 * colorAlpha / 255;
+            int keep = 255 - layer;
+            a = layer + a * keep / 255;
+            r = colorR * layer + r * keep / 255;
+            g = colorG * layer + g * keep / 255;
+            b = colorB * layer + b * keep / 255;
+
+            layer = outline[i] * (255 - s) / 255 * outlineAlpha / 255;
+            keep = 255 - layer;
+            a = layer + a * keep / 255;
+            r = outlineR * layer + r * keep / 255;
+            g = outlineG * layer + g * keep / 255;
+            b = outlineB * layer + b * keep / 255;
+
+            if (a == 0) {
+                pixels[i] = 0;
+            } else {
+                pixels[i] = (a << 24) | (Math.min(r / a, 255) << 16)
+                        | (Math.min(g / a, 255) << 8) | Math.min(b / a, 255);
+            }
+        }
+        srcDst.setPixels(pixels, 0, width, 0, 0, width, height);
+        if (size > MAX_RETAINED_SIZE) {
+            releaseBuffers();
+        }
+    }
+
+    /**
+     * Approximates a gaussian blur of the alpha plane src into dst, which may be the same
+     * array. Everything outside of the plane is transparent.
+     */
+    void blur(int[] src, int[] dst, int width, int height, float radius) {
+        final float sigma = BLUR_SIGMA_SCALE * radius + 0.5f;
+        computeBoxRadii(sigma, mBoxRadii);
+        int[] in = src;
+        for (int pass = 0; pass < mBoxRadii.length; pass++) {
+            boxBlurHorizontal(in, mScratch, width, height, mBoxRadii[pass]);
+            boxBlurVertical(mScratch, dst, width, height, mBoxRadii[pass]);
+            in = dst;
+        }
+    }
+
+    /**
+     * Computes the radii of the box blurs that, applied one after the other, come closest to a
+     * gaussian blur of the given sigma.
+     */
+    static void computeBoxRadii(float sigma, int[] radii) {
+        final int n = radii.length;
+        int lower = (int) Math.sqrt(12 * sigma * sigma / n + 1);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        final int upper = lower + 2;
+        // Number of passes using the lower width
+        final int m = Math.round((12 * sigma * sigma - n * lower * lower - 4 * n * lower - 3 * n)
+                / (-4f * lower - 4));
+        for (int i = 0; i < n; i++) {
+            radii[i] = ((i < m ? lower : upper) - 1) / 2;
+        }
+    }
+
+    static void boxBlurHorizontal(int[] src, int[] dst, int width, int height, int radius) {
+        final int div = 2 * radius + 1;
+        for (int y = 0; y < height; y++) {
+            final int row = y * width;
+            int sum = 0;
+            for (int x = 0; x <= radius && x < width; x++) {
+                sum += src[row + x];
+            }
+            for (int x = 0; x < width; x++) {
+                dst[row + x] = (sum + radius) / div;
+                if (x + radius + 1 < width) {
+                    sum += src[row + x + radius + 1];
+                }
+                if (x - radius >= 0) {
+                    sum -= src[row + x - radius];
+                }
+            }
+        }
+    }
+
+    static void boxBlurVertical(int[] src, int[] dst, int width, int height, int radius) {
+        final int div = 2 * radius + 1;
+        for (int x = 0; x < width; x++) {
+            int sum = 0;
+            for (int y = 0; y <= radius && y < height; y++) {
+                sum += src[y * width + x];
+            }
+            for (int y = 0; y < height; y++) {
+                dst[y * width + x] = (sum + radius) / div;
+                if (y + radius + 1 < height) {
+                    sum += src[(y + radius + 1) * width + x];
+                }
+                if (y - radius >= 0) {
+                    sum -= src[(y - radius) * width + x];
+                }
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@ public class BubbleTextView extends TextView implements ShortcutInfo.ShortcutLis
     private int mPrevAlpha = -1;
 
     private final HolographicOutlineHelper mOutlineHelper = new HolographicOutlineHelper();
+    private OutlineCache mOutlineCache;
     private final Canvas mTempCanvas = new Canvas();
     private final Rect mTempRect = new Rect();
     private boolean mDidInvalidateForPressedState;
@@ -81,6 +82,7 @@ public class BubbleTextView extends TextView implements ShortcutInfo.ShortcutLis
     private void init() {
         mLongPressHelper = new CheckLongPressHelper(this);
         mBackground = getBackground();
+        mOutlineCache = OutlineCache.getInstance(getContext());
 
         final Resources res = getContext().getResources();
         mFocusedOutlineColor = mFocusedGlowColor = mPressedOutlineColor = mPressedGlowColor =
@@ -177,6 +179,10 @@ public class BubbleTextView extends TextView implements ShortcutInfo.ShortcutLis
                 null, null);
     }
 
+    private int getIconClipBottom() {
+        return getExtendedPaddingTop() - (int) BubbleTextView.PADDING_V + getLayout().getLineTop(0);
+    }
+
     /**
      * Draw this BubbleTextView into the given Canvas.
      *
@@ -188,8 +194,7 @@ public class BubbleTextView extends TextView implements ShortcutInfo.ShortcutLis
         getDrawingRect(clipRect);
 
         // adjust the clip rect so that we don't include the text label
-        clipRect.bottom =
-            getExtendedPaddingTop() - (int) BubbleTextView.PADDING_V + getLayout().getLineTop(0);
+        clipRect.bottom = getIconClipBottom();
 
         // Draw the View into the bitmap.
         // The translate of scrollX and scrollY is necessary when drawing TextViews, because
@@ -204,10 +209,24 @@ public class BubbleTextView extends TextView implements ShortcutInfo.ShortcutLis
     }
 
     /**
-     * Returns a new bitmap to be used as the object outline, e.g. to visualize the drop location.
-     * Responsibility for the bitmap is transferred to the caller.
+     * Returns a bitmap to be used as the object outline, e.g. to visualize the drop location.
+     * The bitmap may be shared with other icons through the outline cache, so it must not be
+     * changed.
      */
     private Bitmap createGlowingOutline(Canvas canvas, int outlineColor, int glowColor) {
+        // The glow only depends on the icon, which is all that is drawn, and how it is drawn
+        OutlineCache.Key key = null;
+        final Drawable icon = getCompoundDrawables()[1];
+        if (icon instanceof FastBitmapDrawable) {
+            key = mOutlineCache.obtainLookupKey();
+            key.set(((FastBitmapDrawable) icon).getBitmap(), getWidth(), getHeight(),
+                    getIconClipBottom(), getScaleX(), getScaleY(), glowColor, outlineColor);
+            final Bitmap cached = mOutlineCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         final int padding = HolographicOutlineHelper.MAX_OUTER_BLUR_RADIUS;
         final Bitmap b = Bitmap.createBitmap(
                 getWidth() + padding, getHeight() + padding, Bitmap.Config.ARGB_8888);
@@ -217,6 +236,9 @@ public class BubbleTextView extends TextView implements ShortcutInfo.ShortcutLis
         mOutlineHelper.applyExtraThickExpensiveOutlineWithBlur(b, canvas, glowColor, outlineColor);
         canvas.setBitmap(null);
 
+        if (key != null) {
+            mOutlineCache.put(key, b);
+        }
         return b;
     }
 
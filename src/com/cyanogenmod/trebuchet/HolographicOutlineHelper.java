@@ -34,28 +34,55 @@ public class HolographicOutlineHelper {
     private static final BlurMaskFilter sExtraThickOuterBlurMaskFilter;
     private static final BlurMaskFilter sThickOuterBlurMaskFilter;
     private static final BlurMaskFilter sMediumOuterBlurMaskFilter;
-    private static final BlurMaskFilter sThinOuterBlurMaskFilter;
+    private static final BlurMaskFilter sExtraThickOutlineBlurMaskFilter;
+    private static final BlurMaskFilter sOutlineBlurMaskFilter;
     private static final BlurMaskFilter sThickInnerBlurMaskFilter;
     private static final BlurMaskFilter sExtraThickInnerBlurMaskFilter;
     private static final BlurMaskFilter sMediumInnerBlurMaskFilter;
 
-    private static final int THICK = 0;
-    private static final int MEDIUM = 1;
-    private static final int EXTRA_THICK = 2;
+    static final int THICK = 0;
+    static final int MEDIUM = 1;
+    static final int EXTRA_THICK = 2;
+
+    // Whether outlines are blurred in software rather than by the mask filter chain
+    private static final boolean USE_BOX_BLUR = true;
+
+    private static final float sScale;
+
+    private final OutlineEngine mEngine;
+
+    /**
+     * Draws the outline of whatever is drawn in a bitmap into the bitmap, in place.
+     */
+    interface OutlineEngine {
+        void applyOutline(Bitmap srcDst, Canvas srcDstCanvas, int color, int outlineColor,
+                boolean clipAlpha, int thickness);
+    }
 
     static {
         final float scale = LauncherApplication.getScreenDensity();
+        sScale = scale;
 
         MIN_OUTER_BLUR_RADIUS = (int) (scale * 1.0f);
         MAX_OUTER_BLUR_RADIUS = (int) (scale * 12.0f);
 
-        sExtraThickOuterBlurMaskFilter = new BlurMaskFilter(scale * 12.0f, BlurMaskFilter.Blur.OUTER);
-        sThickOuterBlurMaskFilter = new BlurMaskFilter(scale * 6.0f, BlurMaskFilter.Blur.OUTER);
-        sMediumOuterBlurMaskFilter = new BlurMaskFilter(scale * 2.0f, BlurMaskFilter.Blur.OUTER);
-        sThinOuterBlurMaskFilter = new BlurMaskFilter(scale * 1.0f, BlurMaskFilter.Blur.OUTER);
-        sExtraThickInnerBlurMaskFilter = new BlurMaskFilter(scale * 6.0f, BlurMaskFilter.Blur.NORMAL);
-        sThickInnerBlurMaskFilter = new BlurMaskFilter(scale * 4.0f, BlurMaskFilter.Blur.NORMAL);
-        sMediumInnerBlurMaskFilter = new BlurMaskFilter(scale * 2.0f, BlurMaskFilter.Blur.NORMAL);
+        // The radii depend on sScale, so it has to be set first
+        sExtraThickOuterBlurMaskFilter = new BlurMaskFilter(getOuterBlurRadius(EXTRA_THICK),
+                BlurMaskFilter.Blur.OUTER);
+        sThickOuterBlurMaskFilter = new BlurMaskFilter(getOuterBlurRadius(THICK),
+                BlurMaskFilter.Blur.OUTER);
+        sMediumOuterBlurMaskFilter = new BlurMaskFilter(getOuterBlurRadius(MEDIUM),
+                BlurMaskFilter.Blur.OUTER);
+        sExtraThickOutlineBlurMaskFilter = new BlurMaskFilter(getOutlineBlurRadius(EXTRA_THICK),
+                BlurMaskFilter.Blur.OUTER);
+        sOutlineBlurMaskFilter = new BlurMaskFilter(getOutlineBlurRadius(THICK),
+                BlurMaskFilter.Blur.OUTER);
+        sExtraThickInnerBlurMaskFilter = new BlurMaskFilter(getInnerBlurRadius(EXTRA_THICK),
+                BlurMaskFilter.Blur.NORMAL);
+        sThickInnerBlurMaskFilter = new BlurMaskFilter(getInnerBlurRadius(THICK),
+                BlurMaskFilter.Blur.NORMAL);
+        sMediumInnerBlurMaskFilter = new BlurMaskFilter(getInnerBlurRadius(MEDIUM),
+                BlurMaskFilter.Blur.NORMAL);
     }
 
     HolographicOutlineHelper() {
@@ -66,6 +93,46 @@ public class HolographicOutlineHelper {
         mErasePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
         mErasePaint.setFilterBitmap(true);
         mErasePaint.setAntiAlias(true);
+        mEngine = USE_BOX_BLUR ? BoxBlurOutlineEngine.getInstance() : new MaskFilterOutlineEngine();
+    }
+
+    /**
+     * Returns the radius of the glow around the outlined shape, in pixels.
+     */
+    static float getOuterBlurRadius(int thickness) {
+        switch (thickness) {
+            case EXTRA_THICK:
+                return sScale * 12.0f;
+            case THICK:
+                return sScale * 6.0f;
+            case MEDIUM:
+                return sScale * 2.0f;
+            default:
+                throw new RuntimeException("Invalid blur thickness");
+        }
+    }
+
+    /**
+     * Returns the radius of the bright outline around the outlined shape, in pixels.
+     */
+    static float getOutlineBlurRadius(int thickness) {
+        return thickness == EXTRA_THICK ? sScale * 2.0f : sScale * 1.0f;
+    }
+
+    /**
+     * Returns the radius of the glow inside the outlined shape, in pixels.
+     */
+    static float getInnerBlurRadius(int thickness) {
+        switch (thickness) {
+            case EXTRA_THICK:
+                return sScale * 6.0f;
+            case THICK:
+                return sScale * 4.0f;
+            case MEDIUM:
+                return sScale * 2.0f;
+            default:
+                throw new RuntimeException("Invalid blur thickness");
+        }
     }
 
     /**
@@ -100,101 +167,111 @@ public class HolographicOutlineHelper {
     }
     void applyExpensiveOutlineWithBlur(Bitmap srcDst, Canvas srcDstCanvas, int color,
             int outlineColor, boolean clipAlpha, int thickness) {
+        mEngine.applyOutline(srcDst, srcDstCanvas, color, outlineColor, clipAlpha, thickness);
+    }
 
-        // We start by removing most of the alpha channel so as to ignore shadows, and
-        // other types of partial transparency when defining the shape of the object
-        if (clipAlpha) {
-            int[] srcBuffer = new int[srcDst.getWidth() * srcDst.getHeight()];
-            srcDst.getPixels(srcBuffer,
-                    0, srcDst.getWidth(), 0, 0, srcDst.getWidth(), srcDst.getHeight());
-            for (int i = 0; i < srcBuffer.length; i++) {
-                final int alpha = srcBuffer[i] >>> 24;
-                if (alpha < 188) {
-                    srcBuffer[i] = 0;
+    /**
+     * Draws outlines with BlurMaskFilters, going through an alpha bitmap for each blur.
+     */
+    private class MaskFilterOutlineEngine implements OutlineEngine {
+        public void applyOutline(Bitmap srcDst, Canvas srcDstCanvas, int color,
+                int outlineColor, boolean clipAlpha, int thickness) {
+
+            // We start by removing most of the alpha channel so as to ignore shadows, and
+            // other types of partial transparency when defining the shape of the object
+            if (clipAlpha) {
+                int[] srcBuffer = new int[srcDst.getWidth() * srcDst.getHeight()];
+                srcDst.getPixels(srcBuffer,
+                        0, srcDst.getWidth(), 0, 0, srcDst.getWidth(), srcDst.getHeight());
+                for (int i = 0; i < srcBuffer.length; i++) {
+                    final int alpha = srcBuffer[i] >>> 24;
+                    if (alpha < 188) {
+                        srcBuffer[i] = 0;
+                    }
                 }
+                srcDst.setPixels(srcBuffer,
+                        0, srcDst.getWidth(), 0, 0, srcDst.getWidth(), srcDst.getHeight());
             }
-            srcDst.setPixels(srcBuffer,
-                    0, srcDst.getWidth(), 0, 0, srcDst.getWidth(), srcDst.getHeight());
-        }
-        Bitmap glowShape = srcDst.extractAlpha();
+            Bitmap glowShape = srcDst.extractAlpha();
 
-        // calculate the outer blur first
-        BlurMaskFilter outerBlurMaskFilter;
-        switch (thickness) {
-            case EXTRA_THICK:
-                outerBlurMaskFilter = sExtraThickOuterBlurMaskFilter;
-                break;
-            case THICK:
-                outerBlurMaskFilter = sThickOuterBlurMaskFilter;
-                break;
-            case MEDIUM:
-                outerBlurMaskFilter = sMediumOuterBlurMaskFilter;
-                break;
-            default:
-                throw new RuntimeException("Invalid blur thickness");
-        }
-        mBlurPaint.setMaskFilter(outerBlurMaskFilter);
-        int[] outerBlurOffset = new int[2];
-        Bitmap thickOuterBlur = glowShape.extractAlpha(mBlurPaint, outerBlurOffset);
-        if (thickness == EXTRA_THICK) {
-            mBlurPaint.setMaskFilter(sMediumOuterBlurMaskFilter);
-        } else {
-            mBlurPaint.setMaskFilter(sThinOuterBlurMaskFilter);
-        }
+            // calculate the outer blur first
+            BlurMaskFilter outerBlurMaskFilter;
+            switch (thickness) {
+                case EXTRA_THICK:
+                    outerBlurMaskFilter = sExtraThickOuterBlurMaskFilter;
+                    break;
+                case THICK:
+                    outerBlurMaskFilter = sThickOuterBlurMaskFilter;
+                    break;
+                case MEDIUM:
+                    outerBlurMaskFilter = sMediumOuterBlurMaskFilter;
+                    break;
+                default:
+                    throw new RuntimeException("Invalid blur thickness");
+            }
+            mBlurPaint.setMaskFilter(outerBlurMaskFilter);
+            int[] outerBlurOffset = new int[2];
+            Bitmap thickOuterBlur = glowShape.extractAlpha(mBlurPaint, outerBlurOffset);
+            if (thickness == EXTRA_THICK) {
+                mBlurPaint.setMaskFilter(sExtraThickOutlineBlurMaskFilter);
+            } else {
+                mBlurPaint.setMaskFilter(sOutlineBlurMaskFilter);
+            }
 
-        int[] brightOutlineOffset = new int[2];
-        Bitmap brightOutline = glowShape.extractAlpha(mBlurPaint, brightOutlineOffset);
+            int[] brightOutlineOffset = new int[2];
+            Bitmap brightOutline = glowShape.extractAlpha(mBlurPaint, brightOutlineOffset);
 
-        // calculate the inner blur
-        srcDstCanvas.setBitmap(glowShape);
-        srcDstCanvas.drawColor(0xFF000000, PorterDuff.Mode.SRC_OUT);
-        BlurMaskFilter innerBlurMaskFilter;
-        switch (thickness) {
-            case EXTRA_THICK:
-                innerBlurMaskFilter = sExtraThickInnerBlurMaskFilter;
-                break;
-            case THICK:
-                innerBlurMaskFilter = sThickInnerBlurMaskFilter;
-                break;
-            case MEDIUM:
-                innerBlurMaskFilter = sMediumInnerBlurMaskFilter;
-                break;
-            default:
-                throw new RuntimeException("Invalid blur thickness");
+            // calculate the inner blur
+            srcDstCanvas.setBitmap(glowShape);
+            srcDstCanvas.drawColor(0xFF000000, PorterDuff.Mode.SRC_OUT);
+            BlurMaskFilter innerBlurMaskFilter;
+            switch (thickness) {
+                case EXTRA_THICK:
+                    innerBlurMaskFilter = sExtraThickInnerBlurMaskFilter;
+                    break;
+                case THICK:
+                    innerBlurMaskFilter = sThickInnerBlurMaskFilter;
+                    break;
+                case MEDIUM:
+                    innerBlurMaskFilter = sMediumInnerBlurMaskFilter;
+                    break;
+                default:
+                    throw new RuntimeException("Invalid blur thickness");
+            }
+            mBlurPaint.setMaskFilter(innerBlurMaskFilter);
+            int[] thickInnerBlurOffset = new int[2];
+            Bitmap thickInnerBlur = glowShape.extractAlpha(mBlurPaint, thickInnerBlurOffset);
+
+            // mask out the inner blur
+            srcDstCanvas.setBitmap(thickInnerBlur);
+            srcDstCanvas.drawBitmap(glowShape, -thickInnerBlurOffset[0],
+                    -thickInnerBlurOffset[1], mErasePaint);
+            srcDstCanvas.drawRect(0, 0, -thickInnerBlurOffset[0], thickInnerBlur.getHeight(),
+                    mErasePaint);
+            srcDstCanvas.drawRect(0, 0, thickInnerBlur.getWidth(), -thickInnerBlurOffset[1],
+                    mErasePaint);
+
+            // draw the inner and outer blur
+            srcDstCanvas.setBitmap(srcDst);
+            srcDstCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+            mHolographicPaint.setColor(color);
+            srcDstCanvas.drawBitmap(thickInnerBlur, thickInnerBlurOffset[0],
+                    thickInnerBlurOffset[1], mHolographicPaint);
+            srcDstCanvas.drawBitmap(thickOuterBlur, outerBlurOffset[0], outerBlurOffset[1],
+                    mHolographicPaint);
+
+            // draw the bright outline
+            mHolographicPaint.setColor(outlineColor);
+            srcDstCanvas.drawBitmap(brightOutline, brightOutlineOffset[0], brightOutlineOffset[1],
+                    mHolographicPaint);
+
+            // cleanup
+            srcDstCanvas.setBitmap(null);
+            brightOutline.recycle();
+            thickOuterBlur.recycle();
+            thickInnerBlur.recycle();
+            glowShape.recycle();
         }
-        mBlurPaint.setMaskFilter(innerBlurMaskFilter);
-        int[] thickInnerBlurOffset = new int[2];
-        Bitmap thickInnerBlur = glowShape.extractAlpha(mBlurPaint, thickInnerBlurOffset);
-
-        // mask out the inner blur
-        srcDstCanvas.setBitmap(thickInnerBlur);
-        srcDstCanvas.drawBitmap(glowShape, -thickInnerBlurOffset[0],
-                -thickInnerBlurOffset[1], mErasePaint);
-        srcDstCanvas.drawRect(0, 0, -thickInnerBlurOffset[0], thickInnerBlur.getHeight(),
-                mErasePaint);
-        srcDstCanvas.drawRect(0, 0, thickInnerBlur.getWidth(), -thickInnerBlurOffset[1],
-                mErasePaint);
-
-        // draw the inner and outer blur
-        srcDstCanvas.setBitmap(srcDst);
-        srcDstCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
-        mHolographicPaint.setColor(color);
-        srcDstCanvas.drawBitmap(thickInnerBlur, thickInnerBlurOffset[0], thickInnerBlurOffset[1],
-                mHolographicPaint);
-        srcDstCanvas.drawBitmap(thickOuterBlur, outerBlurOffset[0], outerBlurOffset[1],
-                mHolographicPaint);
-
-        // draw the bright outline
-        mHolographicPaint.setColor(outlineColor);
-        srcDstCanvas.drawBitmap(brightOutline, brightOutlineOffset[0], brightOutlineOffset[1],
-                mHolographicPaint);
-
-        // cleanup
-        srcDstCanvas.setBitmap(null);
-        brightOutline.recycle();
-        thickOuterBlur.recycle();
-        thickInnerBlur.recycle();
-        glowShape.recycle();
     }
 
     void applyExtraThickExpensiveOutlineWithBlur(Bitmap srcDst, Canvas srcDstCanvas, int color,
@@ -37,6 +37,7 @@ public class Hotseat extends PagedView {
     private boolean mIsLandscape;
 
     private float[] mTempCellLayoutCenterCoordinates = new float[2];
+    private final float[] mTempTouchXy = new float[2];
     private Matrix mTempInverseMatrix = new Matrix();
 
     private static final int DEFAULT_PAGE = 0;
@@ -218,7 +219,9 @@ public class Hotseat extends PagedView {
         for (int i = 0; i < screenCount; i++) {
             CellLayout cl = (CellLayout) getChildAt(i);
 
-            final float[] touchXy = {originX, originY};
+            final float[] touchXy = mTempTouchXy;
+            touchXy[0] = originX;
+            touchXy[1] = originY;
             // Transform the touch coordinates to the CellLayout's local coordinates
             // If the touch point is within the bounds of the cell layout, we can return immediately
             cl.getMatrix().invert(mTempInverseMatrix);
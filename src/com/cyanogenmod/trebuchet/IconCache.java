@@ -18,34 +18,52 @@ package com.cyanogenmod.trebuchet;
 
 import android.app.ActivityManager;
 import android.content.ComponentName;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
+import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 
 import com.cyanogenmod.trebuchet.preference.PreferencesProvider;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * Titles and icons are also persisted in {@link CacheDb}, keyed by component, package update
+ * time, locale and icon pack version, so that a cold start does not have to go back to the
+ * PackageManager for every activity.
  */
 public class IconCache {
-    @SuppressWarnings("unused")
     private static final String TAG = "Trebuchet.IconCache";
 
     private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
-    private IconPackHelper mIconPackHelper;
+    private volatile IconPackHelper mIconPackHelper;
 
     private static class CacheEntry {
         public Bitmap icon;
         public String title;
+        // Set when prefetch() loaded the entry and already counted the load, until the lookup
+        // the entry was loaded for
+        public boolean prefetched;
     }
 
     private final Bitmap mDefaultIcon;
@@ -53,8 +71,31 @@ public class IconCache {
     private final PackageManager mPackageManager;
     private final HashMap<ComponentName, CacheEntry> mCache =
             new HashMap<ComponentName, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    // Secondary index of mCache by package name, so packages can be invalidated on their own
+    private final HashMap<String, HashSet<ComponentName>> mPackageIndex =
+            new HashMap<String, HashSet<ComponentName>>();
     private int mIconDpi;
 
+    private final CacheDb mDb;
+    private volatile String mIconPackName;
+    // The installed version of the icon pack, so icons of an updated pack aren't served from disk
+    private volatile int mIconPackVersionCode;
+    private volatile long mIconPackUpdateTime;
+    // Bumped under the cache lock whenever the icon pack changes, so that icons resolved
+    // without the lock for the previous pack are dropped
+    private int mIconPackGeneration;
+    // Package lastUpdateTime, cached so we don't hit the PackageManager for every activity
+    private final HashMap<String, Long> mPackageUpdateTimes = new HashMap<String, Long>();
+    // Entries that were built from the PackageManager and still need to be persisted
+    private final HashMap<ComponentName, ContentValues> mPendingWrites =
+            new HashMap<ComponentName, ContentValues>();
+
+    // Lookup statistics, guarded by mCache
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+    private int mEvictions;
+
     public IconCache(LauncherApplication context) {
         ActivityManager activityManager =
                 (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
@@ -67,9 +108,112 @@ public class IconCache {
         mDefaultIcon = makeDefaultIcon();
 
         String iconPack = PreferencesProvider.Interface.General.getIconPack();
+        mIconPackHelper = loadIconPack(iconPack);
+        mIconPackName = iconPack;
+        setIconPackVersion(iconPack);
+
+        mDb = new CacheDb(context);
+    }
+
+    private IconPackHelper loadIconPack(String iconPack) {
+        if (TextUtils.isEmpty(iconPack)) {
+            return null;
+        }
+        IconPackHelper helper = new IconPackHelper(mContext);
+        helper.loadIconPack(iconPack);
+        return helper;
+    }
+
+    private void setIconPackVersion(String iconPack) {
+        int versionCode = 0;
+        long lastUpdateTime = 0;
         if (!TextUtils.isEmpty(iconPack)) {
-            mIconPackHelper = new IconPackHelper(context);
-            mIconPackHelper.loadIconPack(iconPack);
+            try {
+                final PackageInfo pack = mPackageManager.getPackageInfo(iconPack, 0);
+                versionCode = pack.versionCode;
+                lastUpdateTime = pack.lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                // Not an installed pack, there are no icons from it to keep apart
+            }
+        }
+        mIconPackVersionCode = versionCode;
+        mIconPackUpdateTime = lastUpdateTime;
+    }
+
+    public String getIconPackName() {
+        return mIconPackName;
+    }
+
+    /**
+     * Switch to the supplied icon pack, or to the default icons if it is empty, dropping every
+     * icon built for the previous one.  The pack is loaded on the calling thread, so this
+     * should be called from a background thread.
+     */
+    public void setIconPack(String iconPack) {
+        final IconPackHelper helper = loadIconPack(iconPack);
+        synchronized (mCache) {
+            mIconPackHelper = helper;
+            mIconPackName = iconPack;
+            setIconPackVersion(iconPack);
+            mIconPackGeneration++;
+            mEvictions += mCache.size();
+            mCache.clear();
+            mPackageIndex.clear();
+            mPendingWrites.clear();
+        }
+    }
+
+    private static final String SELECT_QUERY = CacheDb.COLUMN_COMPONENT + " = ? AND " +
+            CacheDb.COLUMN_LAST_UPDATED + " = ? AND " +
+            CacheDb.COLUMN_LOCALE + " = ? AND " +
+            CacheDb.COLUMN_ICON_PACK + " = ? AND " +
+            CacheDb.COLUMN_ICON_PACK_VERSION + " = ? AND " +
+            CacheDb.COLUMN_ICON_PACK_UPDATED + " = ?";
+
+    static class CacheDb extends SQLiteOpenHelper {
+        final static int DB_VERSION = 2;
+        final static String DB_NAME = "app_icons.db";
+        final static String TABLE_NAME = "app_icons";
+        final static String COLUMN_COMPONENT = "component";
+        final static String COLUMN_PACKAGE = "package";
+        final static String COLUMN_LAST_UPDATED = "last_updated";
+        final static String COLUMN_LOCALE = "locale";
+        final static String COLUMN_ICON_PACK = "icon_pack";
+        final static String COLUMN_ICON_PACK_VERSION = "icon_pack_version";
+        final static String COLUMN_ICON_PACK_UPDATED = "icon_pack_updated";
+        final static String COLUMN_LABEL = "label";
+        final static String COLUMN_ICON = "icon";
+
+        public CacheDb(Context context) {
+            // Lives next to launcher.db in the databases directory
+            super(context, DB_NAME, null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_COMPONENT + " TEXT NOT NULL, " +
+                    COLUMN_PACKAGE + " TEXT NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_LOCALE + " TEXT NOT NULL, " +
+                    COLUMN_ICON_PACK + " TEXT NOT NULL, " +
+                    COLUMN_ICON_PACK_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_ICON_PACK_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_LABEL + " TEXT, " +
+                    COLUMN_ICON + " BLOB NOT NULL, " +
+                    "PRIMARY KEY (" + COLUMN_COMPONENT + ") " +
+                    ");");
+            database.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_package ON " +
+                    TABLE_NAME + " (" + COLUMN_PACKAGE + ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion != newVersion) {
+                // This is a cache; drop it and let it be repopulated
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+                onCreate(db);
+            }
         }
     }
 
@@ -110,10 +254,11 @@ public class IconCache {
 
     public Drawable getFullResIcon(ActivityInfo info) {
         int iconId = 0;
-        if (mIconPackHelper != null && mIconPackHelper.isIconPackLoaded()) {
-            iconId = mIconPackHelper.getResourceIdForActivityIcon(info);
+        final IconPackHelper iconPackHelper = mIconPackHelper;
+        if (iconPackHelper != null && iconPackHelper.isIconPackLoaded()) {
+            iconId = iconPackHelper.getResourceIdForActivityIcon(info);
             if (iconId != 0) {
-                return getFullResIcon(mIconPackHelper.getIconPackResources(), iconId);
+                return getFullResIcon(iconPackHelper.getIconPackResources(), iconId);
             }
         }
         Resources resources;
@@ -149,7 +294,38 @@ public class IconCache {
      */
     public void remove(ComponentName componentName) {
         synchronized (mCache) {
-            mCache.remove(componentName);
+            if (mCache.remove(componentName) != null) {
+                mEvictions++;
+                final HashSet<ComponentName> components =
+                        mPackageIndex.get(componentName.getPackageName());
+                if (components != null) {
+                    components.remove(componentName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove any records, in memory and on disk, for the supplied package.
+     */
+    public void removePackage(String packageName) {
+        synchronized (mCache) {
+            final HashSet<ComponentName> components = mPackageIndex.remove(packageName);
+            if (components != null) {
+                for (ComponentName cn : components) {
+                    mCache.remove(cn);
+                    mPendingWrites.remove(cn);
+                }
+                mEvictions += components.size();
+            }
+            mPackageUpdateTimes.remove(packageName);
+
+            try {
+                mDb.getWritableDatabase().delete(CacheDb.TABLE_NAME,
+                        CacheDb.COLUMN_PACKAGE + " = ?", new String[] { packageName });
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Could not remove cached icons for " + packageName, e);
+            }
         }
     }
 
@@ -158,7 +334,77 @@ public class IconCache {
      */
     public void flush() {
         synchronized (mCache) {
+            mEvictions += mCache.size();
             mCache.clear();
+            mPackageIndex.clear();
+            mPackageUpdateTimes.clear();
+        }
+    }
+
+    /**
+     * Number of lookups served from memory, from the on-disk cache, and that had to go to the
+     * PackageManager, plus the number of evicted entries, in that order.
+     */
+    public int[] getStats() {
+        synchronized (mCache) {
+            return new int[] { mMemoryHits, mDiskHits, mMisses, mEvictions };
+        }
+    }
+
+    /**
+     * Fraction of lookups that did not have to go to the PackageManager.
+     */
+    public float getHitRate() {
+        synchronized (mCache) {
+            final int total = mMemoryHits + mDiskHits + mMisses;
+            return total > 0 ? (mMemoryHits + mDiskHits) / (float) total : 1f;
+        }
+    }
+
+    public void resetStats() {
+        synchronized (mCache) {
+            mMemoryHits = mDiskHits = mMisses = mEvictions = 0;
+        }
+    }
+
+    public void dumpState() {
+        synchronized (mCache) {
+            Log.d(TAG, "mCache size=" + mCache.size() + " packages=" + mPackageIndex.size()
+                    + " pendingWrites=" + mPendingWrites.size());
+            Log.d(TAG, "memoryHits=" + mMemoryHits + " diskHits=" + mDiskHits
+                    + " misses=" + mMisses + " evictions=" + mEvictions
+                    + " hitRate=" + getHitRate());
+        }
+    }
+
+    /**
+     * Write any titles and icons built since the last call to the on-disk cache, in a single
+     * transaction.  Should be called from a background thread.
+     */
+    public void commitPendingWrites() {
+        final ArrayList<ContentValues> writes;
+        synchronized (mCache) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            writes = new ArrayList<ContentValues>(mPendingWrites.values());
+            mPendingWrites.clear();
+        }
+
+        try {
+            SQLiteDatabase db = mDb.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ContentValues values : writes) {
+                    db.insertWithOnConflict(CacheDb.TABLE_NAME, null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Could not persist " + writes.size() + " icons", e);
         }
     }
 
@@ -175,6 +421,45 @@ public class IconCache {
         }
     }
 
+    /**
+     * Seed "labelCache" with the persisted titles of the supplied activities, so that sorting
+     * them doesn't have to load every label from the PackageManager.
+     */
+    public void preloadTitles(List<ResolveInfo> infos, HashMap<Object, CharSequence> labelCache) {
+        final HashSet<ComponentName> components = new HashSet<ComponentName>(infos.size());
+        for (ResolveInfo info : infos) {
+            components.add(LauncherModel.getComponentNameFromResolveInfo(info));
+        }
+
+        synchronized (mCache) {
+            Cursor c = null;
+            try {
+                c = mDb.getReadableDatabase().query(CacheDb.TABLE_NAME,
+                        new String[] { CacheDb.COLUMN_COMPONENT, CacheDb.COLUMN_LAST_UPDATED,
+                                CacheDb.COLUMN_LABEL },
+                        CacheDb.COLUMN_LOCALE + " = ?",
+                        new String[] { Locale.getDefault().toString() },
+                        null, null, null);
+                while (c.moveToNext()) {
+                    final ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                    final String title = c.getString(2);
+                    if (cn == null || title == null || !components.contains(cn)) {
+                        continue;
+                    }
+                    if (c.getLong(1) == getPackageUpdateTimeLocked(cn.getPackageName())) {
+                        labelCache.put(cn, title);
+                    }
+                }
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Could not read cached titles", e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+    }
+
     public Bitmap getIcon(Intent intent) {
         synchronized (mCache) {
             if (intent == null) {
@@ -205,6 +490,17 @@ public class IconCache {
         }
     }
 
+    /**
+     * Decodes an icon stored in the database, or returns null if it can't be decoded.
+     */
+    public Bitmap decodeIcon(byte[] data) {
+        return Utilities.decodeIconBitmap(data, mContext);
+    }
+
+    public Bitmap getDefaultIcon() {
+        return mDefaultIcon;
+    }
+
     public boolean isDefaultIcon(Bitmap icon) {
         return mDefaultIcon == icon;
     }
@@ -215,9 +511,19 @@ public class IconCache {
         if (entry == null) {
             entry = new CacheEntry();
 
-            mCache.put(componentName, entry);
+            putLocked(componentName, entry);
 
             ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+            final long lastUpdateTime = getPackageUpdateTimeLocked(componentName.getPackageName());
+            if (loadFromDb(componentName, lastUpdateTime, entry)) {
+                mDiskHits++;
+                if (labelCache != null && !labelCache.containsKey(key)) {
+                    labelCache.put(key, entry.title);
+                }
+                return entry;
+            }
+            mMisses++;
+
             if (labelCache != null && labelCache.containsKey(key)) {
                 entry.title = labelCache.get(key).toString();
             } else {
@@ -232,10 +538,152 @@ public class IconCache {
 
             entry.icon = Utilities.createIconBitmap(
                     getFullResIcon(info), mContext);
+
+            if (lastUpdateTime != 0) {
+                queueWriteLocked(componentName, lastUpdateTime, entry);
+            }
+        } else if (entry.prefetched) {
+            entry.prefetched = false;
+        } else {
+            mMemoryHits++;
         }
         return entry;
     }
 
+    /**
+     * Resolve the title and icon for "info" into the cache.  Unlike getTitleAndIcon(), the
+     * expensive part runs without holding the cache lock, so several threads can resolve icons
+     * at once.  "labelCache" is only read from, so it can be shared between those threads.
+     */
+    public void prefetch(ResolveInfo info, HashMap<Object, CharSequence> labelCache) {
+        final ComponentName componentName = LauncherModel.getComponentNameFromResolveInfo(info);
+        final long lastUpdateTime;
+        final int iconPackGeneration;
+        synchronized (mCache) {
+            if (mCache.containsKey(componentName)) {
+                return;
+            }
+            lastUpdateTime = getPackageUpdateTimeLocked(componentName.getPackageName());
+            iconPackGeneration = mIconPackGeneration;
+        }
+
+        final CacheEntry entry = new CacheEntry();
+        final boolean fromDb = loadFromDb(componentName, lastUpdateTime, entry);
+        if (!fromDb) {
+            CharSequence title = labelCache != null ? labelCache.get(componentName) : null;
+            if (title == null) {
+                title = info.loadLabel(mPackageManager);
+            }
+            entry.title = title != null ? title.toString() : info.activityInfo.name;
+            entry.icon = Utilities.createIconBitmap(getFullResIcon(info), mContext);
+        }
+
+        synchronized (mCache) {
+            if (mCache.containsKey(componentName)) {
+                // Somebody beat us to it
+                return;
+            }
+            if (iconPackGeneration != mIconPackGeneration) {
+                // The icon pack changed while we were resolving the icon
+                return;
+            }
+            entry.prefetched = true;
+            putLocked(componentName, entry);
+            if (fromDb) {
+                mDiskHits++;
+            } else {
+                mMisses++;
+                if (lastUpdateTime != 0) {
+                    queueWriteLocked(componentName, lastUpdateTime, entry);
+                }
+            }
+        }
+    }
+
+    private void putLocked(ComponentName componentName, CacheEntry entry) {
+        mCache.put(componentName, entry);
+        final String packageName = componentName.getPackageName();
+        HashSet<ComponentName> components = mPackageIndex.get(packageName);
+        if (components == null) {
+            components = new HashSet<ComponentName>();
+            mPackageIndex.put(packageName, components);
+        }
+        components.add(componentName);
+    }
+
+    private long getPackageUpdateTimeLocked(String packageName) {
+        Long lastUpdateTime = mPackageUpdateTimes.get(packageName);
+        if (lastUpdateTime == null) {
+            try {
+                lastUpdateTime = mPackageManager.getPackageInfo(packageName, 0).lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                lastUpdateTime = 0L;
+            }
+            mPackageUpdateTimes.put(packageName, lastUpdateTime);
+        }
+        return lastUpdateTime;
+    }
+
+    /**
+     * Fills in "entry" from the on-disk cache if it holds a record that is still valid for the
+     * installed package, the current locale and the current icon pack.  Safe to call without
+     * holding the cache lock.
+     */
+    private boolean loadFromDb(ComponentName componentName, long lastUpdateTime,
+            CacheEntry entry) {
+        if (lastUpdateTime == 0) {
+            return false;
+        }
+        Cursor c = null;
+        try {
+            c = mDb.getReadableDatabase().query(CacheDb.TABLE_NAME,
+                    new String[] { CacheDb.COLUMN_LABEL, CacheDb.COLUMN_ICON },
+                    SELECT_QUERY,
+                    new String[] { componentName.flattenToString(),
+                            String.valueOf(lastUpdateTime),
+                            Locale.getDefault().toString(), mIconPackName,
+                            String.valueOf(mIconPackVersionCode),
+                            String.valueOf(mIconPackUpdateTime) },
+                    null, null, null);
+            if (c.moveToFirst()) {
+                final String title = c.getString(0);
+                final byte[] data = c.getBlob(1);
+                final Bitmap icon = BitmapFactory.decodeByteArray(data, 0, data.length);
+                if (title != null && icon != null) {
+                    entry.title = title;
+                    entry.icon = Utilities.createIconBitmap(icon, mContext);
+                    return true;
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Could not read cached icon for " + componentName, e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return false;
+    }
+
+    private void queueWriteLocked(ComponentName componentName, long lastUpdateTime,
+            CacheEntry entry) {
+        final byte[] data = ItemInfo.flattenBitmap(entry.icon);
+        if (data == null) {
+            return;
+        }
+        final ContentValues values = new ContentValues();
+        values.put(CacheDb.COLUMN_COMPONENT, componentName.flattenToString());
+        values.put(CacheDb.COLUMN_PACKAGE, componentName.getPackageName());
+        values.put(CacheDb.COLUMN_LAST_UPDATED, lastUpdateTime);
+        values.put(CacheDb.COLUMN_LOCALE, Locale.getDefault().toString());
+        values.put(CacheDb.COLUMN_ICON_PACK, mIconPackName);
+        values.put(CacheDb.COLUMN_ICON_PACK_VERSION, mIconPackVersionCode);
+        values.put(CacheDb.COLUMN_ICON_PACK_UPDATED, mIconPackUpdateTime);
+        values.put(CacheDb.COLUMN_LABEL, entry.title);
+        values.put(CacheDb.COLUMN_ICON, data);
+        mPendingWrites.put(componentName, values);
+    }
+
     public HashMap<ComponentName, Bitmap> getAllIcons() {
         synchronized (mCache) {
             HashMap<ComponentName, Bitmap> set = new HashMap<ComponentName,Bitmap>();
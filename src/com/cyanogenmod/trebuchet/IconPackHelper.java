@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -18,6 +19,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
@@ -40,13 +42,12 @@ public class IconPackHelper {
     };
 
     private final Context mContext;
-    private Map<ComponentName, String> mIconPackResources;
+    private IconPackIndex mIconPackIndex;
     private String mLoadedIconPackName;
     private Resources mLoadedIconPackResource;
 
     IconPackHelper(Context context) {
         mContext = context;
-        mIconPackResources = new HashMap<ComponentName, String>();
     }
 
     public static HashMap<CharSequence, String> getSupportedPackages(Context context) {
@@ -70,7 +71,7 @@ public class IconPackHelper {
         return packages;
     }
 
-    private static void loadResourcesFromXmlParser(XmlPullParser parser,
+    static void loadResourcesFromXmlParser(XmlPullParser parser,
             Map<ComponentName, String> iconPackResources) throws XmlPullParserException, IOException {
         int eventType = parser.getEventType();
         do {
@@ -98,12 +99,12 @@ public class IconPackHelper {
             }
 
             // Sanitize stored value
-            component = component.substring(14, component.length() - 1).toLowerCase();
+            component = component.substring(14, component.length() - 1).toLowerCase(Locale.US);
 
             ComponentName name = null;
             if (!component.contains("/")) {
                 // Package icon reference
-                name = new ComponentName(component.toLowerCase(), "");
+                name = new ComponentName(component.toLowerCase(Locale.US), "");
             } else {
                 name = ComponentName.unflattenFromString(component);
             }
@@ -132,7 +133,7 @@ public class IconPackHelper {
             String icon = name;
             name = name.replaceAll("_", ".");
 
-            ComponentName compName = new ComponentName(name.toLowerCase(), "");
+            ComponentName compName = new ComponentName(name.toLowerCase(Locale.US), "");
             iconPackResources.put(compName, icon);
 
             int activityIndex = name.lastIndexOf(".");
@@ -151,8 +152,8 @@ public class IconPackHelper {
             }
 
             // Store entries as lower case to ensure match
-            iconPackage = iconPackage.toLowerCase();
-            iconActivity = iconActivity.toLowerCase();
+            iconPackage = iconPackage.toLowerCase(Locale.US);
+            iconActivity = iconActivity.toLowerCase(Locale.US);
 
             iconActivity = iconPackage + "." + iconActivity;
             compName = new ComponentName(iconPackage, iconActivity);
@@ -161,7 +162,7 @@ public class IconPackHelper {
     }
 
     public void loadIconPack(String packageName) {
-        mIconPackResources = getIconPackResources(mContext, packageName);
+        mIconPackIndex = getIconPackIndex(mContext, packageName);
         Resources res = null;
         try {
             res = mContext.getPackageManager().getResourcesForApplication(packageName);
@@ -173,19 +174,42 @@ public class IconPackHelper {
     }
 
     public static Map<ComponentName, String> getIconPackResources(Context context, String packageName) {
+        IconPackIndex index = getIconPackIndex(context, packageName);
+        return index != null ? index.toMap() : null;
+    }
+
+    /**
+     * Returns the compiled mappings of the pack, reading them from the stored index when it is
+     * current and parsing the pack, then storing its index, otherwise.
+     */
+    static IconPackIndex getIconPackIndex(Context context, String packageName) {
         String defaultIcons = context.getResources().getString(R.string.default_iconpack_title);
         if (packageName.equals(defaultIcons)) {
             return null;
         }
 
         Resources res = null;
+        PackageInfo pack = null;
         try {
-            res = context.getPackageManager().getResourcesForApplication(packageName);
+            PackageManager packageManager = context.getPackageManager();
+            res = packageManager.getResourcesForApplication(packageName);
+            pack = packageManager.getPackageInfo(packageName, 0);
         } catch (PackageManager.NameNotFoundException e) {
             e.printStackTrace();
             return null;
         }
 
+        IconPackIndex index = IconPackIndex.read(context, pack);
+        if (index == null) {
+            index = IconPackIndex.compile(parseIconPackResources(context, res, packageName),
+                    res, packageName);
+            index.write(context, pack);
+        }
+        return index;
+    }
+
+    private static Map<ComponentName, String> parseIconPackResources(Context context,
+            Resources res, String packageName) {
         XmlPullParser parser = null;
         InputStream inputStream = null;
         Map<ComponentName, String> iconPackResources = new HashMap<ComponentName, String>();
@@ -243,7 +267,7 @@ public class IconPackHelper {
                 String icon = entry;
                 entry = entry.replaceAll("_", ".");
 
-                compName = new ComponentName(entry.toLowerCase(), "");
+                compName = new ComponentName(entry.toLowerCase(Locale.US), "");
                 iconPackResources.put(compName, icon);
 
                 int activityIndex = entry.lastIndexOf(".");
@@ -262,8 +286,8 @@ public class IconPackHelper {
                 }
 
                 // Store entries as lower case to ensure match
-                iconPackage = iconPackage.toLowerCase();
-                iconActivity = iconActivity.toLowerCase();
+                iconPackage = iconPackage.toLowerCase(Locale.US);
+                iconActivity = iconActivity.toLowerCase(Locale.US);
 
                 iconActivity = iconPackage + "." + iconActivity;
                 compName = new ComponentName(iconPackage, iconActivity);
@@ -347,12 +371,7 @@ public class IconPackHelper {
     boolean isIconPackLoaded() {
         return mLoadedIconPackResource != null &&
                 mLoadedIconPackName != null &&
-                mIconPackResources != null;
-    }
-
-    private int getResourceIdForDrawable(String resource) {
-        int resId = mLoadedIconPackResource.getIdentifier(resource, "drawable", mLoadedIconPackName);
-        return resId;
+                mIconPackIndex != null;
     }
 
     public Resources getIconPackResources() {
@@ -360,17 +379,12 @@ public class IconPackHelper {
     }
 
     public int getResourceIdForActivityIcon(ActivityInfo info) {
-        ComponentName compName = new ComponentName(info.packageName.toLowerCase(), info.name.toLowerCase());
-        String drawable = mIconPackResources.get(compName);
-        if (drawable == null) {
+        int resId = mIconPackIndex.getResourceId(info.packageName, info.name);
+        if (resId == 0) {
             // Icon pack doesn't have an icon for the activity, fallback to package icon
-            compName = new ComponentName(info.packageName.toLowerCase(), "");
-            drawable = mIconPackResources.get(compName);
-            if (drawable == null) {
-                return 0;
-            }
+            resId = mIconPackIndex.getResourceId(info.packageName, "");
         }
-        return getResourceIdForDrawable(drawable);
+        return resId;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,275 @@
+package com.cyanogenmod.trebuchet;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The component to drawable mappings of an icon pack, compiled once from its appfilter and
+ * stored on disk. An index is only used for the version of the pack it was compiled from, and
+ * is read back with a single read, which is far cheaper than parsing the appfilter of a pack
+ * with thousands of entries.
+ */
+class IconPackIndex {
+    private static final String TAG = "Trebuchet.IconPackIndex";
+    private static final boolean DEBUG = false;
+
+    private static final String DIRECTORY = "iconpacks";
+    private static final int MAGIC = 0x54495058; // TIPX
+    // Version 2 keys are lower cased with Locale.US rather than the default locale
+    private static final int FORMAT_VERSION = 2;
+    // Three empty strings and a resource id
+    private static final int MIN_ENTRY_BYTES = 3 * 2 + 4;
+
+    // The component class is empty for entries mapping the icon of a whole package. All names
+    // are stored lower cased with Locale.US, which is what fold() matches.
+    final String[] packages;
+    final String[] classes;
+    final String[] drawables;
+    // The resolved drawable ids, 0 when the pack doesn't have the drawable
+    final int[] resIds;
+
+    // Open addressing table of the entries with a drawable, by their case-folded component.
+    // Slots hold the entry + 1, or 0 when empty.
+    private int[] mTable;
+
+    private IconPackIndex(int size) {
+        packages = new String[size];
+        classes = new String[size];
+        drawables = new String[size];
+        resIds = new int[size];
+    }
+
+    int size() {
+        return resIds.length;
+    }
+
+    private void buildLookup() {
+        final int size = size();
+        int capacity = 16;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        mTable = new int[capacity];
+        final int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            if (resIds[i] == 0) continue;
+            int slot = hash(packages[i], classes[i]) & mask;
+            while (mTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mTable[slot] = i + 1;
+        }
+    }
+
+    /**
+     * Returns the drawable id for the component, matched ignoring case, or 0 if the pack has
+     * none. An empty class name looks up the icon of the whole package. This doesn't allocate.
+     */
+    int getResourceId(String packageName, String className) {
+        final int mask = mTable.length - 1;
+        int slot = hash(packageName, className) & mask;
+        int entry;
+        while ((entry = mTable[slot]) != 0) {
+            entry--;
+            if (equalsIgnoreCase(packages[entry], packageName)
+                    && equalsIgnoreCase(classes[entry], className)) {
+                return resIds[entry];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private static int hash(String packageName, String className) {
+        int h = 0;
+        for (int i = 0; i < packageName.length(); i++) {
+            h = 31 * h + fold(packageName.charAt(i));
+        }
+        h = 31 * h + '/';
+        for (int i = 0; i < className.length(); i++) {
+            h = 31 * h + fold(className.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Lower cases a character the way String.toLowerCase(Locale.US) lower cased the stored
+     * names, whatever the default locale is, so an 'I' never folds to a dotless i.
+     */
+    private static char fold(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(c);
+    }
+
+    private static boolean equalsIgnoreCase(String a, String b) {
+        final int length = a.length();
+        if (b.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (fold(a.charAt(i)) != fold(b.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Map<ComponentName, String> toMap() {
+        final int size = size();
+        Map<ComponentName, String> map = new HashMap<ComponentName, String>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            map.put(new ComponentName(packages[i], classes[i]), drawables[i]);
+        }
+        return map;
+    }
+
+    /**
+     * Builds the index of the mappings parsed from the pack, resolving their drawables.
+     */
+    static IconPackIndex compile(Map<ComponentName, String> mappings, Resources res,
+            String packageName) {
+        final long t = DEBUG ? SystemClock.uptimeMillis() : 0;
+        IconPackIndex index = new IconPackIndex(mappings.size());
+        // Packs map many components to the same drawable, only resolve each one once
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        int i = 0;
+        for (Map.Entry<ComponentName, String> entry : mappings.entrySet()) {
+            final String drawable = entry.getValue();
+            Integer id = ids.get(drawable);
+            if (id == null) {
+                id = res.getIdentifier(drawable, "drawable", packageName);
+                ids.put(drawable, id);
+            }
+            index.packages[i] = entry.getKey().getPackageName();
+            index.classes[i] = entry.getKey().getClassName();
+            index.drawables[i] = drawable;
+            index.resIds[i] = id;
+            i++;
+        }
+        index.buildLookup();
+        if (DEBUG) {
+            Log.d(TAG, "compiled " + i + " entries for " + packageName + " in "
+                    + (SystemClock.uptimeMillis() - t) + "ms");
+        }
+        return index;
+    }
+
+    private static File getIndexFile(Context context, String packageName) {
+        return new File(new File(context.getCacheDir(), DIRECTORY), packageName);
+    }
+
+    /**
+     * Returns the stored index of the pack, or null if there is none for its installed version.
+     */
+    static IconPackIndex read(Context context, PackageInfo pack) {
+        final File file = getIndexFile(context, pack.packageName);
+        if (!file.exists()) {
+            return null;
+        }
+        final long t = DEBUG ? SystemClock.uptimeMillis() : 0;
+        final long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            return null;
+        }
+        try {
+            final byte[] data = new byte[(int) length];
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                new DataInputStream(fis).readFully(data);
+            } finally {
+                fis.close();
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readInt() != pack.versionCode
+                    || in.readLong() != pack.lastUpdateTime
+                    || !in.readUTF().equals(pack.packageName)) {
+                return null;
+            }
+            final int size = in.readInt();
+            // Don't trust a corrupt size with the allocations below
+            if (size < 0 || size > in.available() / MIN_ENTRY_BYTES) {
+                Log.w(TAG, "Invalid index size " + size + " for " + pack.packageName);
+                return null;
+            }
+            IconPackIndex index = new IconPackIndex(size);
+            for (int i = 0; i < size; i++) {
+                index.packages[i] = in.readUTF();
+                index.classes[i] = in.readUTF();
+                index.drawables[i] = in.readUTF();
+                index.resIds[i] = in.readInt();
+            }
+            index.buildLookup();
+            if (DEBUG) {
+                Log.d(TAG, "read " + size + " entries for " + pack.packageName + " in "
+                        + (SystemClock.uptimeMillis() - t) + "ms");
+            }
+            return index;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the index of " + pack.packageName, e);
+            return null;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Corrupt index for " + pack.packageName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the index for the installed version of the pack, replacing any older one.
+     */
+    void write(Context context, PackageInfo pack) {
+        final File file = getIndexFile(context, pack.packageName);
+        file.getParentFile().mkdirs();
+        File tmp = null;
+        try {
+            // Two loads of the same pack can write at once, so each writes its own file
+            tmp = File.createTempFile(pack.packageName, ".tmp", file.getParentFile());
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(pack.versionCode);
+                out.writeLong(pack.lastUpdateTime);
+                out.writeUTF(pack.packageName);
+                final int size = size();
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeUTF(packages[i]);
+                    out.writeUTF(classes[i]);
+                    out.writeUTF(drawables[i]);
+                    out.writeInt(resIds[i]);
+                }
+            } finally {
+                out.close();
+            }
+            // Readers only ever see a complete index
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the index of " + pack.packageName, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -885,6 +885,7 @@ public final class Launcher extends Activity
         if (preferencesChanged()) {
             android.os.Process.killProcess(android.os.Process.myPid());
         }
+        mModel.setIconPack(PreferencesProvider.Interface.General.getIconPack());
         if (mRestoring || mOnResumeNeedsLoad) {
             mWorkspaceLoading = true;
             mModel.startLoader(true, -1);
@@ -3405,6 +3406,10 @@ public final class Launcher extends Activity
         super.onTrimMemory(level);
         if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
             mAppsCustomizeTabHost.onTrimMemory();
+            // The pages hand their previews back to the loader when they are cleared
+            mAppsCustomizeContent.trimWidgetPreviews();
+            OutlineCache.getInstance(this).clear();
+            BoxBlurOutlineEngine.trimMemory();
         }
     }
 
@@ -4407,6 +4412,9 @@ public final class Launcher extends Activity
         if (mAppsCustomizeContent != null) {
             mAppsCustomizeContent.updateApps(apps);
         }
+
+        // The glows of the replaced icons can't be looked up anymore
+        OutlineCache.getInstance(this).clear();
     }
 
     /**
@@ -4806,6 +4814,7 @@ public final class Launcher extends Activity
         if (mAppsCustomizeContent != null) {
             mAppsCustomizeContent.dumpState();
         }
+        OutlineCache.getInstance(this).dumpState();
         Log.d(TAG, "END launcher2 dump state");
     }
 
@@ -22,11 +22,13 @@ import android.appwidget.AppWidgetProviderInfo;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.Intent.ShortcutIconResource;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -41,6 +43,7 @@ import android.net.Uri;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
@@ -61,8 +64,15 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -74,6 +84,23 @@ public class LauncherModel extends BroadcastReceiver {
     private static final String TAG = "Trebuchet.LauncherModel";
 
     private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+
+    // The hotseat and the desktop screen given as argument, loaded and bound ahead of the rest
+    private static final String FIRST_PAGE_ITEMS =
+            LauncherSettings.Favorites.CONTAINER + "="
+                    + LauncherSettings.Favorites.CONTAINER_HOTSEAT + " OR ("
+            + LauncherSettings.Favorites.CONTAINER + "="
+                    + LauncherSettings.Favorites.CONTAINER_DESKTOP + " AND "
+            + LauncherSettings.Favorites.SCREEN + "=?)";
+    // ... together with the contents of the folders placed there
+    private static final String FIRST_PAGE_SELECTION = FIRST_PAGE_ITEMS + " OR "
+            + LauncherSettings.Favorites.CONTAINER + " IN (SELECT "
+            + LauncherSettings.Favorites._ID + " FROM " + LauncherProvider.TABLE_FAVORITES
+            + " WHERE " + FIRST_PAGE_ITEMS + ")";
+    private static final String OTHER_PAGES_SELECTION = LauncherSettings.Favorites._ID
+            + " NOT IN (SELECT " + LauncherSettings.Favorites._ID + " FROM "
+            + LauncherProvider.TABLE_FAVORITES + " WHERE " + FIRST_PAGE_SELECTION + ")";
+
     private final boolean mAppsCanBeOnExternalStorage;
 
     private final LauncherApplication mApp;
@@ -95,12 +122,49 @@ public class LauncherModel extends BroadcastReceiver {
     }
     private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
 
+    // Updates to items already in the db are coalesced by item id and written in a single
+    // transaction once the main thread is done with the current message, so a drop that moves
+    // a whole folder is one batch instead of one round trip per item
+    private static final LinkedHashMap<Long, PendingUpdate> sPendingUpdates =
+            new LinkedHashMap<Long, PendingUpdate>();
+    private static ContentResolver sPendingUpdatesResolver;
+    private static boolean sPendingUpdatesScheduled;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable sFlushPendingUpdates = new Runnable() {
+        public void run() {
+            flushPendingUpdates();
+        }
+    };
+    private static final Runnable sSchedulePendingUpdates = new Runnable() {
+        public void run() {
+            runOnWorkerThread(sFlushPendingUpdates);
+        }
+    };
+
+    private static class PendingUpdate {
+        ItemInfo item;
+        final ContentValues values;
+        StackTraceElement[] stackTrace;
+
+        PendingUpdate(ItemInfo item, ContentValues values, StackTraceElement[] stackTrace) {
+            this.item = item;
+            this.values = values;
+            this.stackTrace = stackTrace;
+        }
+    }
+
+    // Pool the loader fans app title and icon resolution out to; null when loading serially
+    private ExecutorService mIconLoaderPool;
+
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
     private boolean mWorkspaceLoaded;
     private boolean mAllAppsLoaded;
 
+    // Time from starting the loader until the current page got bound, -1 until it first happens
+    private volatile long mTimeToFirstPage = -1;
+
     // When we are loading pages synchronously, we can't just post the binding of items on the side
     // pages as this delays the rotation process.  Instead, we wait for a callback from the first
     // draw (in Workspace) to initiate the binding of the remaining side pages.  Any time we start
@@ -140,10 +204,18 @@ public class LauncherModel extends BroadcastReceiver {
 
     private IconCache mIconCache;
     private Bitmap mDefaultIcon;
+    // The icon pack last asked for, only accessed from the main thread
+    private String mIconPack;
 
     private static int sWorkspaceCellCountX;
     private static int sWorkspaceCellCountY;
     private static int sHotseatCellCount;
+    // Written on the main thread once the drawer is measured, read by the loader
+    private static volatile int sAllAppsPageItemCount;
+
+    // Number of apps bound per chunk after the first drawer page; <= 0 binds them all at once,
+    // without binding the first page on its own
+    private final int mAllAppsBatchSize;
 
     protected int mPreviousConfigMcc;
 
@@ -172,11 +244,36 @@ public class LauncherModel extends BroadcastReceiver {
         mApp = app;
         mBgAllAppsList = new AllAppsList(iconCache);
         mIconCache = iconCache;
+        mIconPack = iconCache.getIconPackName();
 
         mDefaultIcon = Utilities.createIconBitmap(
                 mIconCache.getFullResDefaultActivityIcon(), app);
 
         final Resources res = app.getResources();
+        mAllAppsBatchSize = res.getInteger(R.integer.config_allAppsBatchSize);
+        int iconLoaderThreads = res.getInteger(R.integer.config_iconLoaderThreadCount);
+        if (iconLoaderThreads <= 0) {
+            iconLoaderThreads = Runtime.getRuntime().availableProcessors();
+        }
+        if (iconLoaderThreads > 1) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(iconLoaderThreads, iconLoaderThreads,
+                    1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private int mCount;
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                public void run() {
+                                    // Like the loader, stay out of the way of the UI thread
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "launcher-icon-loader-" + (++mCount));
+                        }
+                    });
+            // Let the threads go away between loads
+            pool.allowCoreThreadTimeOut(true);
+            mIconLoaderPool = pool;
+        }
         Configuration config = res.getConfiguration();
         mPreviousConfigMcc = config.mcc;
     }
@@ -319,57 +416,128 @@ public class LauncherModel extends BroadcastReceiver {
     static void updateItemInDatabaseHelper(Context context, final ContentValues values,
             final ItemInfo item) {
         final long itemId = item.id;
-        final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
-        final ContentResolver cr = context.getContentResolver();
-
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
-        Runnable r = new Runnable() {
-            public void run() {
-                cr.update(uri, values, null, null);
+        synchronized (sPendingUpdates) {
+            PendingUpdate update = sPendingUpdates.get(itemId);
+            if (update == null) {
+                sPendingUpdates.put(itemId, new PendingUpdate(item, values, stackTrace));
+            } else {
+                // Written once, with the newest value of every column
+                update.values.putAll(values);
+                update.item = item;
+                update.stackTrace = stackTrace;
+            }
+            sPendingUpdatesResolver = context.getContentResolver();
+            if (!sPendingUpdatesScheduled) {
+                sPendingUpdatesScheduled = true;
+                sMainHandler.post(sSchedulePendingUpdates);
+            }
+        }
+    }
 
-                // Lock on mBgLock *after* the db operation
-                synchronized (sBgLock) {
-                    checkItemInfoLocked(itemId, item, stackTrace);
+    /**
+     * Writes all the coalesced item updates in one batch. Runs on the worker thread, and must
+     * run before any other db operation queued there so the writes stay in order.
+     */
+    private static void flushPendingUpdates() {
+        final ArrayList<PendingUpdate> updates;
+        final ContentResolver cr;
+        synchronized (sPendingUpdates) {
+            sPendingUpdatesScheduled = false;
+            updates = takePendingUpdates();
+            cr = sPendingUpdatesResolver;
+        }
+        writeUpdates(cr, updates);
+    }
 
-                    if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                            item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                        // Item is in a folder, make sure this folder exists
-                        if (!sBgFolders.containsKey(item.container)) {
-                            // An items container is being set to a that of an item which is not in
-                            // the list of Folders.
-                            String msg = "item: " + item + " container being set to: " +
-                                    item.container + ", not in the list of folders";
-                            Log.e(TAG, msg);
-                            Launcher.dumpDebugLogsToConsole();
-                        }
-                    }
+    /**
+     * Takes the item updates queued so far, or returns null if there are none. Adds and deletes
+     * take them when they are queued, and write them just before their own operation, so that
+     * updates queued after an add or delete are only written after it.
+     */
+    private static ArrayList<PendingUpdate> takePendingUpdates() {
+        synchronized (sPendingUpdates) {
+            if (sPendingUpdates.isEmpty()) {
+                return null;
+            }
+            final ArrayList<PendingUpdate> updates =
+                    new ArrayList<PendingUpdate>(sPendingUpdates.values());
+            sPendingUpdates.clear();
+            return updates;
+        }
+    }
 
-                    // Items are added/removed from the corresponding FolderInfo elsewhere, such
-                    // as in Workspace.onDrop. Here, we just add/remove them from the list of items
-                    // that are on the desktop, as appropriate
-                    ItemInfo modelItem = sBgItemsIdMap.get(itemId);
-                    if (modelItem != null && (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
-                            modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT)) {
-                        switch (modelItem.itemType) {
-                            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
-                            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                            case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
-                            case LauncherSettings.Favorites.ITEM_TYPE_LIVE_FOLDER:
-                            case LauncherSettings.Favorites.ITEM_TYPE_ALLAPPS:
-                                if (!sBgWorkspaceItems.contains(modelItem)) {
-                                    sBgWorkspaceItems.add(modelItem);
-                                }
-                                break;
-                            default:
-                                break;
-                        }
-                    } else {
-                        sBgWorkspaceItems.remove(modelItem);
+    /**
+     * Writes updates taken from the queue in one batch, on the worker thread.
+     */
+    private static void writeUpdates(ContentResolver cr, ArrayList<PendingUpdate> updates) {
+        if (updates == null) {
+            return;
+        }
+
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(updates.size());
+        for (PendingUpdate update : updates) {
+            ops.add(ContentProviderOperation.newUpdate(
+                    LauncherSettings.Favorites.getContentUri(update.item.id, false))
+                    .withValues(update.values)
+                    .build());
+        }
+        try {
+            cr.applyBatch(LauncherProvider.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Could not write " + ops.size() + " item updates", e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Could not write " + ops.size() + " item updates", e);
+        }
+
+        // Lock on mBgLock *after* the db operation
+        synchronized (sBgLock) {
+            for (PendingUpdate update : updates) {
+                updateItemLocked(update.item.id, update.item, update.stackTrace);
+            }
+        }
+    }
+
+    private static void updateItemLocked(final long itemId, final ItemInfo item,
+            StackTraceElement[] stackTrace) {
+        checkItemInfoLocked(itemId, item, stackTrace);
+
+        if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+            // Item is in a folder, make sure this folder exists
+            if (!sBgFolders.containsKey(item.container)) {
+                // An items container is being set to a that of an item which is not in
+                // the list of Folders.
+                String msg = "item: " + item + " container being set to: " +
+                        item.container + ", not in the list of folders";
+                Log.e(TAG, msg);
+                Launcher.dumpDebugLogsToConsole();
+            }
+        }
+
+        // Items are added/removed from the corresponding FolderInfo elsewhere, such
+        // as in Workspace.onDrop. Here, we just add/remove them from the list of items
+        // that are on the desktop, as appropriate
+        ItemInfo modelItem = sBgItemsIdMap.get(itemId);
+        if (modelItem != null && (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT)) {
+            switch (modelItem.itemType) {
+                case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                case LauncherSettings.Favorites.ITEM_TYPE_LIVE_FOLDER:
+                case LauncherSettings.Favorites.ITEM_TYPE_ALLAPPS:
+                    if (!sBgWorkspaceItems.contains(modelItem)) {
+                        sBgWorkspaceItems.add(modelItem);
                     }
-                }
+                    break;
+                default:
+                    break;
             }
-        };
-        runOnWorkerThread(r);
+        } else {
+            sBgWorkspaceItems.remove(modelItem);
+        }
     }
 
     public void flushWorkerThread() {
@@ -384,6 +552,7 @@ public class LauncherModel extends BroadcastReceiver {
             };
 
         synchronized(waiter) {
+            runOnWorkerThread(sFlushPendingUpdates);
             runOnWorkerThread(waiter);
             if (mLoaderTask != null) {
                 synchronized(mLoaderTask) {
@@ -635,6 +804,7 @@ public class LauncherModel extends BroadcastReceiver {
         item.id = app.getLauncherProvider().generateNewId();
         values.put(LauncherSettings.Favorites._ID, item.id);
         item.updateValuesWithCoordinates(values, item.cellX, item.cellY);
+        final ArrayList<PendingUpdate> earlierUpdates = takePendingUpdates();
 
         Runnable r = new Runnable() {
             public void run() {
@@ -644,6 +814,7 @@ public class LauncherModel extends BroadcastReceiver {
                 Launcher.sDumpLogs.add(transaction);
                 Log.d(TAG, transaction);
 
+                writeUpdates(cr, earlierUpdates);
                 cr.insert(notify ? LauncherSettings.Favorites.CONTENT_URI :
                         LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
 
@@ -722,6 +893,14 @@ public class LauncherModel extends BroadcastReceiver {
         sHotseatCellCount = cellCount;
     }
 
+    /**
+     * Updates the number of apps that fit on one page of the all apps drawer, which is the size
+     * of the first batch of apps bound by the loader.
+     */
+    static void updateAllAppsPageItemCount(int itemCount) {
+        sAllAppsPageItemCount = itemCount;
+    }
+
     /**
      * Removes the specified item from the database
      * @param context
@@ -730,6 +909,7 @@ public class LauncherModel extends BroadcastReceiver {
     static void deleteItemFromDatabase(Context context, final ItemInfo item) {
         final ContentResolver cr = context.getContentResolver();
         final Uri uriToDelete = LauncherSettings.Favorites.getContentUri(item.id, false);
+        final ArrayList<PendingUpdate> earlierUpdates = takePendingUpdates();
 
         Runnable r = new Runnable() {
             public void run() {
@@ -739,6 +919,7 @@ public class LauncherModel extends BroadcastReceiver {
                 Launcher.sDumpLogs.add(transaction);
                 Log.d(TAG, transaction);
 
+                writeUpdates(cr, earlierUpdates);
                 cr.delete(uriToDelete, null, null);
 
                 // Lock on mBgLock *after* the db operation
@@ -781,9 +962,11 @@ public class LauncherModel extends BroadcastReceiver {
      */
     static void deleteFolderContentsFromDatabase(Context context, final FolderInfo info) {
         final ContentResolver cr = context.getContentResolver();
+        final ArrayList<PendingUpdate> earlierUpdates = takePendingUpdates();
 
         Runnable r = new Runnable() {
             public void run() {
+                writeUpdates(cr, earlierUpdates);
                 cr.delete(LauncherSettings.Favorites.getContentUri(info.id, false), null, null);
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
@@ -925,6 +1108,114 @@ public class LauncherModel extends BroadcastReceiver {
         startLoaderFromBackground();
     }
 
+    /**
+     * Switch to the supplied icon pack without reloading the workspace.  The icon cache is
+     * rebuilt for the pack on the worker thread, then app shortcuts are handed their new icons
+     * one at a time, those in view first, and the apps are rebound last.
+     */
+    public void setIconPack(final String iconPack) {
+        if (iconPack.equals(mIconPack)) {
+            return;
+        }
+        mIconPack = iconPack;
+
+        final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
+        final int currentScreen = callbacks != null ? callbacks.getCurrentWorkspaceScreen() : 0;
+        runOnWorkerThread(new Runnable() {
+            public void run() {
+                switchIconPack(iconPack, currentScreen);
+            }
+        });
+    }
+
+    private void switchIconPack(String iconPack, final int currentScreen) {
+        final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+        mIconCache.setIconPack(iconPack);
+
+        final ArrayList<ShortcutInfo> shortcuts = new ArrayList<ShortcutInfo>();
+        final HashMap<Long, FolderInfo> folders;
+        synchronized (sBgLock) {
+            for (ItemInfo item : sBgWorkspaceItems) {
+                if (item instanceof ShortcutInfo) {
+                    shortcuts.add((ShortcutInfo) item);
+                }
+            }
+            for (FolderInfo folder : sBgFolders.values()) {
+                shortcuts.addAll(folder.contents);
+            }
+            folders = new HashMap<Long, FolderInfo>(sBgFolders);
+        }
+        Collections.sort(shortcuts, new Comparator<ShortcutInfo>() {
+            public int compare(ShortcutInfo a, ShortcutInfo b) {
+                return getIconPriority(a, folders, currentScreen)
+                        - getIconPriority(b, folders, currentScreen);
+            }
+        });
+
+        for (final ShortcutInfo info : shortcuts) {
+            final Intent intent = info.intent;
+            if (info.itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION
+                    || info.customIcon || intent == null || intent.getComponent() == null) {
+                continue;
+            }
+            final Bitmap icon = mIconCache.getIcon(intent);
+            // The icon reaches the shortcut's views, and folder previews, through its listeners
+            mHandler.post(new Runnable() {
+                public void run() {
+                    info.usingFallbackIcon = mIconCache.isDefaultIcon(icon);
+                    info.setIcon(icon);
+                }
+            });
+        }
+
+        // The bound apps belong to the UI thread, so they are replaced by updated copies
+        final int count = mBgAllAppsList.size();
+        final ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(count);
+        for (int i = 0; i < count; i++) {
+            ApplicationInfo app = new ApplicationInfo(mBgAllAppsList.get(i));
+            app.iconBitmap = mIconCache.getIcon(app.intent);
+            mBgAllAppsList.replace(i, app);
+            apps.add(app);
+        }
+        mIconCache.commitPendingWrites();
+
+        final Callbacks oldCallbacks = mCallbacks != null ? mCallbacks.get() : null;
+        mHandler.post(new Runnable() {
+            public void run() {
+                Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
+                if (callbacks != null && callbacks == oldCallbacks) {
+                    callbacks.bindAppsUpdated(apps);
+                }
+            }
+        });
+        if (DEBUG_LOADERS) {
+            Log.d(TAG, "switched " + shortcuts.size() + " shortcuts and " + apps.size()
+                    + " apps to icon pack " + iconPack + " in "
+                    + (SystemClock.uptimeMillis() - t) + "ms");
+        }
+    }
+
+    /**
+     * Orders items by how far they are from view: the hotseat and current screen first, then
+     * the other screens by distance, with items in folders just after their folder's screen.
+     */
+    private static int getIconPriority(ItemInfo item, HashMap<Long, FolderInfo> folders,
+            int currentScreen) {
+        int priority = 0;
+        if (item.container >= 0) {
+            final FolderInfo folder = folders.get(item.container);
+            if (folder == null) {
+                return Short.MAX_VALUE;
+            }
+            item = folder;
+            priority = 1;
+        }
+        if (item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+            priority += 2 * Math.abs(item.screen - currentScreen);
+        }
+        return priority;
+    }
+
     public void resetLoadedState(boolean resetAllAppsLoaded, boolean resetWorkspaceLoaded) {
         synchronized (mLock) {
             // Stop any existing loaders first, so they don't set mAllAppsLoaded or
@@ -1015,6 +1306,14 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Returns how many milliseconds the last load took to bind the current workspace page,
+     * or -1 if no page has been bound yet.
+     */
+    public long getTimeToFirstPage() {
+        return mTimeToFirstPage;
+    }
+
     public boolean isAllAppsLoaded() {
         return mAllAppsLoaded;
     }
@@ -1040,12 +1339,14 @@ public class LauncherModel extends BroadcastReceiver {
         private boolean mIsLoadingAndBindingWorkspace;
         private boolean mStopped;
         private boolean mLoadAndBindStepFinished;
+        private final long mStartTime;
 
         private HashMap<Object, CharSequence> mLabelCache;
 
         LoaderTask(Context context, boolean isLaunching) {
             mContext = context;
             mIsLaunching = isLaunching;
+            mStartTime = SystemClock.uptimeMillis();
             mLabelCache = new HashMap<Object, CharSequence>();
         }
 
@@ -1066,17 +1367,153 @@ public class LauncherModel extends BroadcastReceiver {
             }
 
             if (!mWorkspaceLoaded) {
+                // Load and bind the current page before the rest of the workspace
+                loadAndBindWorkspaceByPage();
+                return;
+            }
+
+            // Bind the workspace
+            bindWorkspace(-1);
+        }
+
+        /**
+         * Loads the hotseat and the current screen, binds them, and only then loads and binds
+         * the remaining screens, so the visible page doesn't wait on the whole favorites table.
+         */
+        private void loadAndBindWorkspaceByPage() {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                // Nobody to bind to, just load everything
                 loadWorkspace();
                 synchronized (LoaderTask.this) {
-                    if (mStopped) {
-                        return;
+                    if (!mStopped) {
+                        mWorkspaceLoaded = true;
                     }
-                    mWorkspaceLoaded = true;
                 }
+                return;
             }
 
-            // Bind the workspace
-            bindWorkspace(-1);
+            final long t = SystemClock.uptimeMillis();
+            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+            final String[] selectionArgs = new String[] {
+                    String.valueOf(currentScreen), String.valueOf(currentScreen) };
+            final ItemInfo occupied[][][] = createOccupiedArray();
+
+            synchronized (sBgLock) {
+                clearWorkspaceLocked();
+            }
+            loadWorkspace(FIRST_PAGE_SELECTION, selectionArgs, occupied);
+            if (mStopped) {
+                return;
+            }
+
+            unbindWorkspaceItemsOnMainThread();
+            final ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<ItemInfo>();
+            final ArrayList<LauncherAppWidgetInfo> currentAppWidgets =
+                    new ArrayList<LauncherAppWidgetInfo>();
+            final HashMap<Long, FolderInfo> currentFolders = new HashMap<Long, FolderInfo>();
+            synchronized (sBgLock) {
+                currentWorkspaceItems.addAll(sBgWorkspaceItems);
+                currentAppWidgets.addAll(sBgAppWidgets);
+                currentFolders.putAll(sBgFolders);
+            }
+            sortWorkspaceItemsSpatially(currentWorkspaceItems);
+
+            runOnMainThread(makeStartBindingRunnable(oldCallbacks));
+            bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
+                    currentFolders, null);
+            markFirstPageBound(oldCallbacks);
+
+            // Stream in the remaining screens
+            loadWorkspace(OTHER_PAGES_SELECTION, selectionArgs, occupied);
+            synchronized (LoaderTask.this) {
+                if (mStopped) {
+                    // The first page was bound, so the launcher is waiting on the bind to finish
+                    runOnMainThread(makeAbortBindingRunnable(oldCallbacks));
+                    return;
+                }
+                mWorkspaceLoaded = true;
+            }
+
+            final ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<ItemInfo>();
+            final ArrayList<LauncherAppWidgetInfo> otherAppWidgets =
+                    new ArrayList<LauncherAppWidgetInfo>();
+            final HashMap<Long, FolderInfo> otherFolders = new HashMap<Long, FolderInfo>();
+            synchronized (sBgLock) {
+                otherWorkspaceItems.addAll(sBgWorkspaceItems);
+                otherAppWidgets.addAll(sBgAppWidgets);
+                otherFolders.putAll(sBgFolders);
+            }
+            otherWorkspaceItems.removeAll(new HashSet<ItemInfo>(currentWorkspaceItems));
+            otherAppWidgets.removeAll(new HashSet<LauncherAppWidgetInfo>(currentAppWidgets));
+            otherFolders.keySet().removeAll(currentFolders.keySet());
+            sortWorkspaceItemsSpatially(otherWorkspaceItems);
+
+            bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
+                    null);
+            runOnMainThread(makeFinishBindingRunnable(oldCallbacks, t));
+        }
+
+        /** Records how long it took from starting the loader until the current page was bound. */
+        private void markFirstPageBound(final Callbacks oldCallbacks) {
+            final long startTime = mStartTime;
+            runOnMainThread(new Runnable() {
+                public void run() {
+                    if (tryGetCallbacks(oldCallbacks) != null) {
+                        mTimeToFirstPage = SystemClock.uptimeMillis() - startTime;
+                        if (DEBUG_LOADERS) {
+                            Log.d(TAG, "bound first page in " + mTimeToFirstPage + "ms");
+                        }
+                    }
+                }
+            });
+        }
+
+        private Runnable makeStartBindingRunnable(final Callbacks oldCallbacks) {
+            return new Runnable() {
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.startBinding();
+                    }
+                }
+            };
+        }
+
+        private Runnable makeFinishBindingRunnable(final Callbacks oldCallbacks, final long t) {
+            return new Runnable() {
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.finishBindingItems();
+                    }
+
+                    // If we're profiling, ensure this is the last thing in the queue.
+                    if (DEBUG_LOADERS) {
+                        Log.d(TAG, "bound workspace in "
+                            + (SystemClock.uptimeMillis()-t) + "ms");
+                    }
+
+                    mIsLoadingAndBindingWorkspace = false;
+                }
+            };
+        }
+
+        /**
+         * Finishes a bind that was started but that the stopped loader won't complete, so the
+         * launcher doesn't stay in its loading state. Unlike the other bind runnables it still
+         * reaches the callbacks once the loader is stopped.
+         */
+        private Runnable makeAbortBindingRunnable(final Callbacks oldCallbacks) {
+            return new Runnable() {
+                public void run() {
+                    Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
+                    if (callbacks != null && callbacks == oldCallbacks) {
+                        callbacks.finishBindingItems();
+                    }
+                    mIsLoadingAndBindingWorkspace = false;
+                }
+            };
         }
 
         private void waitForIdle() {
@@ -1217,6 +1654,9 @@ public class LauncherModel extends BroadcastReceiver {
                 sBgDbIconCache.clear();
             }
 
+            // Persist any icons and titles that had to be built from the PackageManager
+            mIconCache.commitPendingWrites();
+
             // Clear out this reference, otherwise we end up holding it until all of the
             // callback runnables are done.
             mContext = null;
@@ -1300,8 +1740,38 @@ public class LauncherModel extends BroadcastReceiver {
         }
 
         private void loadWorkspace() {
+            synchronized (sBgLock) {
+                clearWorkspaceLocked();
+            }
+            loadWorkspace(null, null, createOccupiedArray());
+        }
+
+        private void clearWorkspaceLocked() {
+            sBgWorkspaceItems.clear();
+            sBgAppWidgets.clear();
+            sBgFolders.clear();
+            sBgItemsIdMap.clear();
+            sBgDbIconCache.clear();
+        }
+
+        private ItemInfo[][][] createOccupiedArray() {
+            return new ItemInfo[Launcher.MAX_SCREEN_COUNT]
+                    [Math.max(sWorkspaceCellCountX, sHotseatCellCount)]
+                    [Math.max(sWorkspaceCellCountY, sHotseatCellCount)];
+        }
+
+        /**
+         * Loads the favorites matching the selection on top of what is already in the bg data
+         * structures. The occupied array must be shared by all the calls that fill the same
+         * workspace, so overlapping items are still detected across them.
+         */
+        private void loadWorkspace(String selection, String[] selectionArgs,
+                ItemInfo occupied[][][]) {
             final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
+            // Don't read back rows that still have updates waiting to be written
+            flushPendingUpdates();
+
             final Context context = mContext;
             final ContentResolver contentResolver = context.getContentResolver();
             final PackageManager manager = context.getPackageManager();
@@ -1312,22 +1782,11 @@ public class LauncherModel extends BroadcastReceiver {
             mApp.getLauncherProvider().loadDefaultFavoritesIfNecessary(0);
 
             synchronized (sBgLock) {
-                sBgWorkspaceItems.clear();
-                sBgAppWidgets.clear();
-                sBgFolders.clear();
-                sBgItemsIdMap.clear();
-                sBgDbIconCache.clear();
-
                 final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
 
                 final Cursor c = contentResolver.query(
-                        LauncherSettings.Favorites.CONTENT_URI, null, null, null, null);
-
-                // Load workspace in reverse order to ensure that latest items are loaded first (and
-                // before any earlier duplicates)
-                final ItemInfo occupied[][][] =
-                        new ItemInfo[Launcher.MAX_SCREEN_COUNT][Math.max(sWorkspaceCellCountX, sHotseatCellCount)]
-                                [Math.max(sWorkspaceCellCountY, sHotseatCellCount)];
+                        LauncherSettings.Favorites.CONTENT_URI, null, selection, selectionArgs,
+                        null);
 
                 try {
                     final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
@@ -1785,6 +2244,18 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
+        /** Decodes the icons of the item (or of the folder contents) that were left undecoded
+         * while loading, so they are ready by the time the item is bound. */
+        private void decodePendingIcons(ItemInfo item) {
+            if (item instanceof ShortcutInfo) {
+                decodePendingIcon((ShortcutInfo) item, mContext);
+            } else if (item instanceof FolderInfo) {
+                for (ShortcutInfo info : ((FolderInfo) item).contents) {
+                    decodePendingIcon(info, mContext);
+                }
+            }
+        }
+
         private void bindWorkspaceItems(final Callbacks oldCallbacks,
                 final ArrayList<ItemInfo> workspaceItems,
                 final ArrayList<LauncherAppWidgetInfo> appWidgets,
@@ -1800,6 +2271,9 @@ public class LauncherModel extends BroadcastReceiver {
             for (int i = 0; i < N; i += ITEMS_CHUNK) {
                 final int start = i;
                 final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
+                for (int j = start; j < start + chunkSize; j++) {
+                    decodePendingIcons(workspaceItems.get(j));
+                }
                 final Runnable r = new Runnable() {
                     @Override
                     public void run() {
@@ -1818,6 +2292,9 @@ public class LauncherModel extends BroadcastReceiver {
 
             // Bind the folders
             if (!folders.isEmpty()) {
+                for (FolderInfo folder : folders.values()) {
+                    decodePendingIcons(folder);
+                }
                 final Runnable r = new Runnable() {
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
@@ -1908,19 +2385,12 @@ public class LauncherModel extends BroadcastReceiver {
             sortWorkspaceItemsSpatially(otherWorkspaceItems);
 
             // Tell the workspace that we're about to start binding items
-            r = new Runnable() {
-                public void run() {
-                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                    if (callbacks != null) {
-                        callbacks.startBinding();
-                    }
-                }
-            };
-            runOnMainThread(r);
+            runOnMainThread(makeStartBindingRunnable(oldCallbacks));
 
             // Load items on the current page
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
                     currentFolders, null);
+            markFirstPageBound(oldCallbacks);
             if (isLoadingSynchronously) {
                 r = new Runnable() {
                     public void run() {
@@ -1940,22 +2410,7 @@ public class LauncherModel extends BroadcastReceiver {
                     (isLoadingSynchronously ? mDeferredBindRunnables : null));
 
             // Tell the workspace that we're done binding items
-            r = new Runnable() {
-                public void run() {
-                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                    if (callbacks != null) {
-                        callbacks.finishBindingItems();
-                    }
-
-                    // If we're profiling, ensure this is the last thing in the queue.
-                    if (DEBUG_LOADERS) {
-                        Log.d(TAG, "bound workspace in "
-                            + (SystemClock.uptimeMillis()-t) + "ms");
-                    }
-
-                    mIsLoadingAndBindingWorkspace = false;
-                }
-            };
+            r = makeFinishBindingRunnable(oldCallbacks, t);
             if (isLoadingSynchronously) {
                 mDeferredBindRunnables.add(r);
             } else {
@@ -2050,6 +2505,9 @@ public class LauncherModel extends BroadcastReceiver {
                 return;
             }
 
+            // Titles persisted by the icon cache save us from loading every label to sort
+            mIconCache.preloadTitles(apps, mLabelCache);
+
             final long sortTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
             Collections.sort(apps,
                     new ShortcutNameComparator(packageManager, mLabelCache));
@@ -2058,30 +2516,55 @@ public class LauncherModel extends BroadcastReceiver {
                         + (SystemClock.uptimeMillis()-sortTime) + "ms");
             }
 
-            for (ResolveInfo info : apps) {
-                // This builds the icon bitmaps.
-                mBgAllAppsList.add(new ApplicationInfo(packageManager, info,
-                        mIconCache, mLabelCache));
-            }
+            // Bind the first page of the drawer as soon as its apps are built, then stream in
+            // the rest in chunks so the drawer doesn't wait on every icon being decoded. With
+            // batching turned off, they are all bound at once.
+            final int pageItemCount = sAllAppsPageItemCount;
+            final int firstBatchSize = mAllAppsBatchSize > 0 && pageItemCount > 0 ?
+                    pageItemCount : mAllAppsBatchSize;
+            int i = 0;
+            while (i < N && !mStopped) {
+                final boolean first = (i == 0);
+                final int batchSize = first ? firstBatchSize : mAllAppsBatchSize;
+                final int end = (batchSize > 0) ? Math.min(i + batchSize, N) : N;
+                final long batchTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                if (mIconLoaderPool != null) {
+                    prefetchIcons(apps, i, end);
+                }
+                for (; i < end; i++) {
+                    // This builds the icon bitmaps.
+                    mBgAllAppsList.add(new ApplicationInfo(packageManager, apps.get(i),
+                            mIconCache, mLabelCache));
+                }
 
-            final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-            final ArrayList<ApplicationInfo> added = mBgAllAppsList.added;
-            mBgAllAppsList.added = new ArrayList<ApplicationInfo>();
+                final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                final ArrayList<ApplicationInfo> added = mBgAllAppsList.added;
+                mBgAllAppsList.added = new ArrayList<ApplicationInfo>();
 
-            mHandler.post(new Runnable() {
-                public void run() {
-                    final long t = SystemClock.uptimeMillis();
-                    if (callbacks != null) {
-                        callbacks.bindAllApplications(added);
-                        if (DEBUG_LOADERS) {
-                            Log.d(TAG, "bound " + added.size() + " apps in "
-                                + (SystemClock.uptimeMillis() - t) + "ms");
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        final long t = SystemClock.uptimeMillis();
+                        if (callbacks != null) {
+                            if (first) {
+                                callbacks.bindAllApplications(added);
+                            } else {
+                                callbacks.bindAppsAdded(added);
+                            }
+                            if (DEBUG_LOADERS) {
+                                Log.d(TAG, "bound " + added.size() + " apps in "
+                                    + (SystemClock.uptimeMillis() - t) + "ms");
+                            }
+                        } else {
+                            Log.i(TAG, "not binding apps: no Launcher activity");
                         }
-                    } else {
-                        Log.i(TAG, "not binding apps: no Launcher activity");
                     }
+                });
+
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "batch of " + added.size() + " apps took "
+                            + (SystemClock.uptimeMillis() - batchTime) + "ms");
                 }
-            });
+            }
 
             if (DEBUG_LOADERS) {
                 Log.d(TAG, "cached all " + N + " apps in "
@@ -2089,6 +2572,35 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
+        /**
+         * Resolves the titles and icons of apps [start, end) across the icon loader pool, and
+         * returns once they are all in the icon cache.
+         */
+        private void prefetchIcons(List<ResolveInfo> apps, int start, int end) {
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(end - start);
+            for (int i = start; i < end; i++) {
+                final ResolveInfo info = apps.get(i);
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        if (!mStopped) {
+                            mIconCache.prefetch(info, mLabelCache);
+                        }
+                        return null;
+                    }
+                });
+            }
+            try {
+                mIconLoaderPool.invokeAll(tasks);
+            } catch (InterruptedException e) {
+                // Whatever wasn't resolved is picked up serially by the caller
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "resolved " + (end - start) + " icons in parallel in "
+                        + (SystemClock.uptimeMillis() - t) + "ms");
+            }
+        }
+
         public void dumpState() {
             synchronized (sBgLock) {
                 Log.d(TAG, "mLoaderTask.mContext=" + mContext);
@@ -2155,6 +2667,8 @@ public class LauncherModel extends BroadcastReceiver {
                     break;
             }
 
+            mIconCache.commitPendingWrites();
+
             ArrayList<ApplicationInfo> added = null;
             ArrayList<ApplicationInfo> modified = null;
             final ArrayList<ApplicationInfo> removedApps = new ArrayList<ApplicationInfo>();
@@ -2408,6 +2922,7 @@ public class LauncherModel extends BroadcastReceiver {
             int titleIndex, int customIconIndex) {
 
         Bitmap icon = null;
+        byte[] data = null;
         final ShortcutInfo info = new ShortcutInfo();
         info.itemType = LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT;
 
@@ -2444,8 +2959,9 @@ public class LauncherModel extends BroadcastReceiver {
             }
             break;
         case LauncherSettings.Favorites.ICON_TYPE_BITMAP:
-            icon = getIconFromCursor(c, iconIndex, context);
-            if (icon == null) {
+            // Keep the compressed bytes, the icon is decoded when its page gets bound
+            data = c.getBlob(iconIndex);
+            if (data == null || data.length == 0) {
                 icon = getFallbackIcon();
                 info.customIcon = false;
                 info.usingFallbackIcon = true;
@@ -2463,7 +2979,11 @@ public class LauncherModel extends BroadcastReceiver {
         if (customIcon != null) {
             icon = customIcon;
         }
-        info.setIcon(icon);
+        if (icon != null) {
+            info.setIcon(icon);
+        } else {
+            info.setIconBlob(data);
+        }
         return info;
     }
 
@@ -2474,13 +2994,25 @@ public class LauncherModel extends BroadcastReceiver {
             Log.d(TAG, "getIconFromCursor app="
                     + c.getString(c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE)));
         }
-        byte[] data = c.getBlob(iconIndex);
-        try {
-            return Utilities.createIconBitmap(
-                    BitmapFactory.decodeByteArray(data, 0, data.length), context);
-        } catch (Exception e) {
-            return null;
+        return Utilities.decodeIconBitmap(c.getBlob(iconIndex), context);
+    }
+
+    /**
+     * Decodes the icon of a shortcut whose blob was kept undecoded by
+     * {@link #getShortcutInfo(Cursor, Context, int, int, int, int, int, int)}.
+     */
+    void decodePendingIcon(ShortcutInfo info, Context context) {
+        byte[] data = info.takeIconBlob();
+        if (data == null) {
+            return;
+        }
+        Bitmap icon = Utilities.decodeIconBitmap(data, context);
+        if (icon == null) {
+            icon = getFallbackIcon();
+            info.customIcon = false;
+            info.usingFallbackIcon = true;
         }
+        info.setIcon(icon);
     }
 
     ShortcutInfo addShortcut(Context context, Intent data, long container, int screen,
@@ -2607,17 +3139,19 @@ public class LauncherModel extends BroadcastReceiver {
         return folderInfo;
     }
 
-    public static final Comparator<ApplicationInfo> getAppNameComparator() {
-        final Collator collator = Collator.getInstance();
-        return new Comparator<ApplicationInfo>() {
-            public final int compare(ApplicationInfo a, ApplicationInfo b) {
-                int result = collator.compare(a.title.toString(), b.title.toString());
-                if (result == 0) {
-                    result = a.componentName.compareTo(b.componentName);
-                }
-                return result;
+    private static final Comparator<ApplicationInfo> APP_NAME_COMPARATOR =
+            new Comparator<ApplicationInfo>() {
+        public final int compare(ApplicationInfo a, ApplicationInfo b) {
+            // Compare the cached collation keys rather than collating the titles every time
+            int result = a.getTitleKey().compareTo(b.getTitleKey());
+            if (result == 0) {
+                result = a.componentName.compareTo(b.componentName);
             }
-        };
+            return result;
+        }
+    };
+    public static final Comparator<ApplicationInfo> getAppNameComparator() {
+        return APP_NAME_COMPARATOR;
     }
     public static final Comparator<ApplicationInfo> APP_INSTALL_TIME_COMPARATOR
             = new Comparator<ApplicationInfo>() {
@@ -2718,6 +3252,8 @@ public class LauncherModel extends BroadcastReceiver {
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.added", mBgAllAppsList.added);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.removed", mBgAllAppsList.removed);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.modified", mBgAllAppsList.modified);
+        mIconCache.dumpState();
+        Log.d(TAG, "mTimeToFirstPage=" + mTimeToFirstPage + "ms");
         if (mLoaderTask != null) {
             mLoaderTask.dumpState();
         } else {
@@ -22,11 +22,14 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
@@ -62,7 +65,7 @@ public class LauncherProvider extends ContentProvider {
 
     private static final String DATABASE_NAME = "launcher.db";
 
-    private static final int DATABASE_VERSION = 16;
+    private static final int DATABASE_VERSION = 17;
 
     static final String AUTHORITY = "com.cyanogenmod.trebuchet.settings";
 
@@ -166,6 +169,20 @@ public class LauncherProvider extends ContentProvider {
         return values.length;
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
@@ -229,6 +246,19 @@ public class LauncherProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Indexes the columns the model looks favorites up by: container/screen for folder
+     * contents and page loads, intent for duplicate shortcut checks and appWidgetId for
+     * widget bookkeeping.
+     */
+    static void createFavoritesIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS favorites_container_screen " +
+                "ON favorites (container, screen);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS favorites_intent ON favorites (intent);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS favorites_appWidgetId " +
+                "ON favorites (appWidgetId);");
+    }
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
         private static final String TAG_FAVORITES = "favorites";
         private static final String TAG_FAVORITE = "favorite";
@@ -293,6 +323,7 @@ public class LauncherProvider extends ContentProvider {
                     "receiverComponent TEXT," +
                     "customIcon TEXT" +
                     ");");
+            createFavoritesIndexes(db);
 
             // Database was just created, so wipe any previous widgets
             if (mAppWidgetHost != null) {
@@ -444,6 +475,12 @@ public class LauncherProvider extends ContentProvider {
                 db.execSQL("ALTER TABLE favorites ADD customIcon TEXT;");
                 version = 16;
             }
+
+            if (version < 17) {
+                createFavoritesIndexes(db);
+                version = 17;
+            }
+
             if (version != DATABASE_VERSION) {
                 Log.w(TAG, "Destroying all old data.");
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES);
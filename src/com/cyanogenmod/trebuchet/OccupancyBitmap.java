@@ -0,0 +1,118 @@
+package com.cyanogenmod.trebuchet;
+
+import java.util.Arrays;
+
+/**
+ * The occupied cells of a grid, stored as one long per row with bit x set when the cell
+ * (x, y) is occupied. Grids can be at most 64 cells wide.
+ */
+class OccupancyBitmap {
+    final int countX;
+    final int countY;
+    final long[] rows;
+
+    OccupancyBitmap(int countX, int countY) {
+        if (countX > 64) {
+            throw new IllegalArgumentException("Grid is too wide: " + countX);
+        }
+        this.countX = countX;
+        this.countY = countY;
+        rows = new long[countY];
+    }
+
+    void copyFrom(OccupancyBitmap other) {
+        System.arraycopy(other.rows, 0, rows, 0, countY);
+    }
+
+    void clear() {
+        Arrays.fill(rows, 0);
+    }
+
+    boolean get(int x, int y) {
+        return (rows[y] & (1L << x)) != 0;
+    }
+
+    void set(int x, int y, boolean value) {
+        if (value) {
+            rows[y] |= 1L << x;
+        } else {
+            rows[y] &= ~(1L << x);
+        }
+    }
+
+    /**
+     * Marks the cells of the region, clipped to the grid.
+     */
+    void markCells(int cellX, int cellY, int spanX, int spanY, boolean value) {
+        if (cellX < 0 || cellY < 0) return;
+        final int endX = Math.min(cellX + spanX, countX);
+        final int endY = Math.min(cellY + spanY, countY);
+        if (endX <= cellX) return;
+        final long mask = spanMask(cellX, endX - cellX);
+        for (int y = cellY; y < endY; y++) {
+            if (value) {
+                rows[y] |= mask;
+            } else {
+                rows[y] &= ~mask;
+            }
+        }
+    }
+
+    /**
+     * Returns whether none of the cells of the region, which must lie within the grid, are
+     * occupied.
+     */
+    boolean isRegionVacant(int cellX, int cellY, int spanX, int spanY) {
+        final long mask = spanMask(cellX, spanX);
+        for (int y = cellY; y < cellY + spanY; y++) {
+            if ((rows[y] & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the occupied cells in the first spanY rows of block, placed with its top
+     * left corner at (cellX, cellY), only cover vacant cells. The block must lie within the grid.
+     */
+    boolean isRegionVacant(int cellX, int cellY, OccupancyBitmap block, int spanY) {
+        for (int y = 0; y < spanY; y++) {
+            if ((rows[cellY + y] & (block.rows[y] << cellX)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the top-most, then left-most, vacant region of the given span.
+     *
+     * @return True if a vacant region was found, and placed in vacant
+     */
+    boolean findVacantCell(int[] vacant, int spanX, int spanY) {
+        if (spanX <= 0 || spanY <= 0 || spanX > countX || spanY > countY) return false;
+        final long allCells = spanMask(0, countX);
+        for (int y = 0; y + spanY <= countY; y++) {
+            long vacantColumns = allCells;
+            for (int j = y; j < y + spanY; j++) {
+                vacantColumns &= ~rows[j];
+            }
+            // Bit x is left set when the spanX columns starting at x are all vacant
+            long fits = vacantColumns;
+            for (int i = 1; i < spanX; i++) {
+                fits &= vacantColumns >>> i;
+            }
+            if (fits != 0) {
+                vacant[0] = Long.numberOfTrailingZeros(fits);
+                vacant[1] = y;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static long spanMask(int cellX, int spanX) {
+        return (spanX >= 64 ? -1L : (1L << spanX) - 1) << cellX;
+    }
+}
@@ -0,0 +1,147 @@
+package com.cyanogenmod.trebuchet;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * The pressed and focused glows of icons, shared by all of them so that pressing an icon again,
+ * or another icon showing the same app, doesn't blur it again. Glows are keyed by the icon
+ * bitmap and everything else they are drawn from, and kept up to a byte budget, which counts the
+ * icons the keys hold on to as well. Only accessed from the UI thread.
+ */
+class OutlineCache {
+    private static final String TAG = "Trebuchet.OutlineCache";
+
+    private static OutlineCache sInstance;
+
+    private final LruCache<Key, Bitmap> mCache;
+    // Reused for lookups, so that a hit doesn't allocate
+    private final Key mLookupKey = new Key();
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    static class Key {
+        // Compared by identity, icons are replaced rather than changed
+        Bitmap icon;
+        int width;
+        int height;
+        int clipBottom;
+        float scaleX;
+        float scaleY;
+        int glowColor;
+        int outlineColor;
+
+        void set(Bitmap icon, int width, int height, int clipBottom, float scaleX,
+                float scaleY, int glowColor, int outlineColor) {
+            this.icon = icon;
+            this.width = width;
+            this.height = height;
+            this.clipBottom = clipBottom;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            this.glowColor = glowColor;
+            this.outlineColor = outlineColor;
+        }
+
+        Key copy() {
+            Key key = new Key();
+            key.set(icon, width, height, clipBottom, scaleX, scaleY, glowColor, outlineColor);
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return icon == other.icon && width == other.width && height == other.height
+                    && clipBottom == other.clipBottom
+                    && Float.floatToIntBits(scaleX) == Float.floatToIntBits(other.scaleX)
+                    && Float.floatToIntBits(scaleY) == Float.floatToIntBits(other.scaleY)
+                    && glowColor == other.glowColor && outlineColor == other.outlineColor;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(icon);
+            h = 31 * h + width;
+            h = 31 * h + height;
+            h = 31 * h + clipBottom;
+            h = 31 * h + Float.floatToIntBits(scaleX);
+            h = 31 * h + Float.floatToIntBits(scaleY);
+            h = 31 * h + glowColor;
+            h = 31 * h + outlineColor;
+            return h;
+        }
+    }
+
+    static OutlineCache getInstance(Context context) {
+        if (sInstance == null) {
+            final int cacheSize = context.getResources().getInteger(
+                    R.integer.config_outlineCacheSizeKb) * 1024;
+            sInstance = new OutlineCache(cacheSize);
+        }
+        return sInstance;
+    }
+
+    private OutlineCache(int maxBytes) {
+        mCache = new LruCache<Key, Bitmap>(Math.max(maxBytes, 1)) {
+            @Override
+            protected int sizeOf(Key key, Bitmap outline) {
+                // The key keeps its icon alive, even once the icon has been replaced
+                final int iconBytes = key.icon != null ? key.icon.getByteCount() : 0;
+                return outline.getByteCount() + iconBytes;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Bitmap oldOutline,
+                    Bitmap newOutline) {
+                if (evicted) {
+                    mEvictions++;
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the key to fill in for a lookup. It is only valid until the next call.
+     */
+    Key obtainLookupKey() {
+        return mLookupKey;
+    }
+
+    /**
+     * Returns the glow for the key, or null if it has to be drawn and then added with
+     * {@link #put}. The glow is shared and must not be drawn into or recycled.
+     */
+    Bitmap get(Key key) {
+        final Bitmap outline = mCache.get(key);
+        if (outline != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return outline;
+    }
+
+    void put(Key key, Bitmap outline) {
+        mCache.put(key.copy(), outline);
+    }
+
+    void clear() {
+        mCache.evictAll();
+    }
+
+    void dumpState() {
+        final int lookups = mHits + mMisses;
+        Log.d(TAG, "mCache size=" + mCache.size() + "/" + mCache.maxSize() + " bytes, entries="
+                + mCache.snapshot().size());
+        Log.d(TAG, "mCache hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions
+                + " hitRate=" + (lookups > 0 ? (100 * mHits / lookups) : 0) + "%");
+    }
+}
@@ -0,0 +1,189 @@
+package com.cyanogenmod.trebuchet;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the background work of loading the pages of the apps customize pane. Pending jobs are
+ * keyed by page and the one closest to the current page always runs next, so changing the
+ * current page re-prioritises everything still queued. Cancelling a page is a single map removal.
+ * A job that is replaced by a newer one for the same page still runs, after every page job, so
+ * the task that queued it always completes.
+ */
+class PageLoadExecutor {
+    private static final String TAG = "Trebuchet.PageLoadExecutor";
+
+    private final Object mLock = new Object();
+    // Jobs waiting to run, by page. Only a handful of pages are ever pending, so picking the
+    // closest one is a scan of this map rather than a heap that needs rebuilding on every scroll.
+    private final HashMap<Integer, Job> mPending = new HashMap<Integer, Job>();
+    // Jobs replaced in mPending, oldest first. They only run once no page job is pending.
+    private final ArrayList<Job> mDisplaced = new ArrayList<Job>();
+    private int mCurrentPage;
+
+    // Statistics, guarded by mLock
+    private int mMaxQueueDepth;
+    private int mCompleted;
+    private int mCancelled;
+    private int mDisplacedCount;
+    private final HashMap<Integer, long[]> mPageLatencies = new HashMap<Integer, long[]>();
+
+    private static class Job {
+        final int page;
+        final Runnable runnable;
+        final long enqueueTime;
+
+        Job(int page, Runnable runnable) {
+            this.page = page;
+            this.runnable = runnable;
+            this.enqueueTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    PageLoadExecutor(String name, int threadCount) {
+        for (int i = 0; i < threadCount; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    while (true) {
+                        runJob(takeJob());
+                    }
+                }
+            }, name + "-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Returns an executor that queues everything it is given as the job for the page. Whatever
+     * was still pending for the page, possibly queued by another pane, is moved behind all the
+     * page jobs rather than dropped, as its task would otherwise never finish.
+     */
+    Executor forPage(final int page) {
+        return new Executor() {
+            public void execute(Runnable r) {
+                synchronized (mLock) {
+                    final Job displaced = mPending.put(page, new Job(page, r));
+                    if (displaced != null) {
+                        mDisplaced.add(displaced);
+                        mDisplacedCount++;
+                    }
+                    mMaxQueueDepth = Math.max(mMaxQueueDepth,
+                            mPending.size() + mDisplaced.size());
+                    mLock.notify();
+                }
+            }
+        };
+    }
+
+    /**
+     * Sets the page that jobs are prioritised around.
+     */
+    void setCurrentPage(int page) {
+        synchronized (mLock) {
+            mCurrentPage = page;
+        }
+    }
+
+    /**
+     * Drops the pending jobs of the page that haven't started running yet and whose task has
+     * been cancelled. A job queued for the same page by another pane is left alone.
+     */
+    boolean cancel(int page) {
+        synchronized (mLock) {
+            boolean cancelled = false;
+            final Job pending = mPending.get(page);
+            if (pending != null && isCancelled(pending)) {
+                mPending.remove(page);
+                mCancelled++;
+                cancelled = true;
+            }
+            Iterator<Job> iter = mDisplaced.iterator();
+            while (iter.hasNext()) {
+                final Job job = iter.next();
+                if (job.page == page && isCancelled(job)) {
+                    iter.remove();
+                    mCancelled++;
+                    cancelled = true;
+                }
+            }
+            return cancelled;
+        }
+    }
+
+    private static boolean isCancelled(Job job) {
+        // AsyncTask hands its FutureTask to the executor
+        return job.runnable instanceof Future && ((Future<?>) job.runnable).isCancelled();
+    }
+
+    int getQueueDepth() {
+        synchronized (mLock) {
+            return mPending.size() + mDisplaced.size();
+        }
+    }
+
+    private Job takeJob() {
+        synchronized (mLock) {
+            while (mPending.isEmpty() && mDisplaced.isEmpty()) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+            if (mPending.isEmpty()) {
+                return mDisplaced.remove(0);
+            }
+            Job next = null;
+            int nextDistance = Integer.MAX_VALUE;
+            for (Job job : mPending.values()) {
+                final int distance = Math.abs(job.page - mCurrentPage);
+                if (distance < nextDistance ||
+                        (distance == nextDistance && job.enqueueTime < next.enqueueTime)) {
+                    next = job;
+                    nextDistance = distance;
+                }
+            }
+            mPending.remove(next.page);
+            return next;
+        }
+    }
+
+    private void runJob(Job job) {
+        final long startTime = SystemClock.uptimeMillis();
+        try {
+            job.runnable.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Loading page " + job.page + " failed", e);
+        }
+        final long endTime = SystemClock.uptimeMillis();
+        synchronized (mLock) {
+            mCompleted++;
+            // Time spent queued, and time spent running
+            mPageLatencies.put(job.page,
+                    new long[] { startTime - job.enqueueTime, endTime - startTime });
+        }
+    }
+
+    void dumpState() {
+        synchronized (mLock) {
+            Log.d(TAG, "queueDepth=" + mPending.size() + " displacedDepth=" + mDisplaced.size()
+                    + " maxQueueDepth=" + mMaxQueueDepth + " completed=" + mCompleted
+                    + " cancelled=" + mCancelled + " displaced=" + mDisplacedCount
+                    + " currentPage=" + mCurrentPage);
+            for (Integer page : mPageLatencies.keySet()) {
+                long[] latency = mPageLatencies.get(page);
+                Log.d(TAG, "   page=" + page + " queued=" + latency[0] + "ms ran="
+                        + latency[1] + "ms");
+            }
+        }
+    }
+}
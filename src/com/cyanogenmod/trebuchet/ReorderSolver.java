@@ -0,0 +1,1083 @@
+package com.cyanogenmod.trebuchet;
+
+import android.graphics.Rect;
+
+/**
+ * Finds how the items of a {@link CellLayout} can be rearranged to make room for an item being
+ * dragged or resized. The solver works on a snapshot of the layout -- its occupied cells and
+ * the cell and span of every item -- and never touches views, so it can run off the UI thread.
+ * Items are identified by their index in the snapshot. A solver has room for a fixed number of
+ * items, and is reused for snapshots of up to that many.
+ */
+class ReorderSolver {
+    private final int mCountX;
+    private final int mCountY;
+    private final int mCapacity;
+    private int mItemCount;
+
+    // The snapshot of the layout
+    private final CellAndSpan[] mItems;
+    private final boolean[] mCanReorder;
+    private final OccupancyBitmap mOccupied;
+    private int mDragItem = -1;
+
+    private int mPaddingLeft;
+    private int mPaddingTop;
+    private int mCellWidth;
+    private int mCellHeight;
+    private int mWidthGap;
+    private int mHeightGap;
+
+    // Working state of a solve, allocated up front so that solving doesn't allocate
+    private final ItemConfiguration mSwapSolution;
+    private final ItemConfiguration mNoShuffleSolution;
+    private final ItemCluster mCluster;
+    private final OccupancyBitmap mTmpOccupied;
+    private final OccupancyBitmap mBlockOccupied;
+    private final int[] mTempLocation = new int[2];
+    private final int[] mTmpPoint = new int[2];
+    private final int[] mDirection = new int[2];
+    private final int[] mSwapCell = new int[2];
+    private final int[] mNoShuffleCell = new int[2];
+    private final int[] mNoShuffleSpan = new int[2];
+    private final int[] mIntersectingItems;
+    private int mIntersectingCount;
+    private final Rect mOccupiedRect = new Rect();
+    private final Rect mBoundingRect = new Rect();
+    private final Rect mDropRect = new Rect();
+    private final Rect mItemRect = new Rect();
+    // findNearestArea considers at most one region per cell
+    private final Rect[] mTempRects;
+    private final Rect mTempBestRect = new Rect();
+
+    private volatile boolean mCancelled;
+
+    ReorderSolver(int countX, int countY, int capacity) {
+        mCountX = countX;
+        mCountY = countY;
+        mCapacity = capacity;
+        mItemCount = capacity;
+        mItems = new CellAndSpan[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mItems[i] = new CellAndSpan();
+        }
+        mCanReorder = new boolean[capacity];
+        mIntersectingItems = new int[capacity];
+        mOccupied = new OccupancyBitmap(countX, countY);
+        mTmpOccupied = new OccupancyBitmap(countX, countY);
+        mBlockOccupied = new OccupancyBitmap(countX, countY);
+        mSwapSolution = new ItemConfiguration(capacity);
+        mNoShuffleSolution = new ItemConfiguration(capacity);
+        mCluster = new ItemCluster();
+        mTempRects = new Rect[countX * countY];
+        for (int i = 0; i < mTempRects.length; i++) {
+            mTempRects[i] = new Rect();
+        }
+    }
+
+    /**
+     * Returns whether the solver can be reused for a layout of the given size.
+     */
+    boolean fits(int countX, int countY, int itemCount) {
+        return mCountX == countX && mCountY == countY && itemCount <= mCapacity;
+    }
+
+    /**
+     * Prepares the solver for a new snapshot of the given number of items, which the caller
+     * then sets up.
+     */
+    void reset(int itemCount) {
+        mItemCount = itemCount;
+        mCancelled = false;
+        mDragItem = -1;
+    }
+
+    void setGeometry(int paddingLeft, int paddingTop, int cellWidth, int cellHeight,
+            int widthGap, int heightGap) {
+        mPaddingLeft = paddingLeft;
+        mPaddingTop = paddingTop;
+        mCellWidth = cellWidth;
+        mCellHeight = cellHeight;
+        mWidthGap = widthGap;
+        mHeightGap = heightGap;
+    }
+
+    void setItem(int index, int cellX, int cellY, int spanX, int spanY, boolean canReorder) {
+        CellAndSpan c = mItems[index];
+        c.x = cellX;
+        c.y = cellY;
+        c.spanX = spanX;
+        c.spanY = spanY;
+        mCanReorder[index] = canReorder;
+    }
+
+    /**
+     * Sets the index of the item being dragged, if it is one of the items of the layout.
+     */
+    void setDragItem(int index) {
+        mDragItem = index;
+    }
+
+    /**
+     * Returns the occupied cells of the snapshot, to be filled in by the caller.
+     */
+    OccupancyBitmap getOccupied() {
+        return mOccupied;
+    }
+
+    /**
+     * Stops the solve in progress, which then returns no solution. May be called from any thread.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Returns the configuration that fits an item of between minSpan and span cells nearest the
+     * given point, either by shuffling the other items or by taking a vacant area as is.
+     * Returns null if there is no such configuration, or if the solver was cancelled. The
+     * configuration belongs to the solver and is only valid until its next solve.
+     */
+    ItemConfiguration solve(int pixelX, int pixelY, int minSpanX, int minSpanY, int spanX,
+            int spanY, int[] direction) {
+        ItemConfiguration swapSolution = solveSwap(pixelX, pixelY, minSpanX, minSpanY, spanX,
+                spanY, direction);
+
+        // We attempt the approach which doesn't shuffle views at all
+        ItemConfiguration noShuffleSolution = findConfigurationNoShuffle(pixelX, pixelY, minSpanX,
+                minSpanY, spanX, spanY, mNoShuffleSolution);
+
+        if (mCancelled) {
+            return null;
+        }
+        if (swapSolution != null && swapSolution.area() >= noShuffleSolution.area()) {
+            return swapSolution;
+        } else if (noShuffleSolution.isSolution) {
+            return noShuffleSolution;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the configuration that fits the item by shuffling the other items, or null if
+     * there is no such configuration, or if the solver was cancelled.
+     */
+    ItemConfiguration solveSwap(int pixelX, int pixelY, int minSpanX, int minSpanY, int spanX,
+            int spanY, int[] direction) {
+        mDirection[0] = direction[0];
+        mDirection[1] = direction[1];
+        for (int i = 0; i < mItemCount; i++) {
+            mSwapSolution.sortedItems[i] = i;
+        }
+        mSwapSolution.count = mItemCount;
+        ItemConfiguration solution = simpleSwap(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY,
+                mDirection, true, mSwapSolution);
+        return solution.isSolution && !mCancelled ? solution : null;
+    }
+
+    private void regionToCenterPoint(int cellX, int cellY, int spanX, int spanY, int[] result) {
+        result[0] = mPaddingLeft + cellX * (mCellWidth + mWidthGap) +
+                (spanX * mCellWidth + (spanX - 1) * mWidthGap) / 2;
+        result[1] = mPaddingTop + cellY * (mCellHeight + mHeightGap) +
+                (spanY * mCellHeight + (spanY - 1) * mHeightGap) / 2;
+    }
+
+    /**
+     * Find a vacant area that will fit the given bounds nearest the requested
+     * cell location. Uses Euclidean distance to score multiple vacant areas.
+     *
+     * @param pixelX The X location at which you want to search for a vacant area.
+     * @param pixelY The Y location at which you want to search for a vacant area.
+     * @param minSpanX The minimum horizontal span required
+     * @param minSpanY The minimum vertical span required
+     * @param spanX Horizontal span of the object.
+     * @param spanY Vertical span of the object.
+     * @param ignoreOccupied If true, the result can be an occupied cell
+     * @param result Array in which to place the result
+     * @param occupied The occupied cells to search
+     * @return The X, Y cell of a vacant area that can contain this object,
+     *         nearest the requested location.
+     */
+    int[] findNearestArea(int pixelX, int pixelY, int minSpanX, int minSpanY, int spanX, int spanY,
+            boolean ignoreOccupied, int[] result, int[] resultSpan, OccupancyBitmap occupied) {
+        // For items with a spanX / spanY > 1, the passed in point (pixelX, pixelY) corresponds
+        // to the center of the item, but we are searching based on the top-left cell, so
+        // we translate the point over to correspond to the top-left.
+        pixelX -= (mCellWidth + mWidthGap) * (spanX - 1) / 2f;
+        pixelY -= (mCellHeight + mHeightGap) * (spanY - 1) / 2f;
+
+        // Keep track of best-scoring drop area
+        final int[] bestXY = result;
+        double bestDistance = Double.MAX_VALUE;
+        final Rect bestRect = mTempBestRect;
+        bestRect.set(-1, -1, -1, -1);
+        int validRegionCount = 0;
+
+        final int countX = mCountX;
+        final int countY = mCountY;
+
+        if (minSpanX <= 0 || minSpanY <= 0 || spanX <= 0 || spanY <= 0 ||
+                spanX < minSpanX || spanY < minSpanY) {
+            return bestXY;
+        }
+
+        for (int y = 0; y < countY - (minSpanY - 1); y++) {
+            for (int x = 0; x < countX - (minSpanX - 1); x++) {
+                int ySize = -1;
+                int xSize = -1;
+                if (ignoreOccupied) {
+                    // First, let's see if this thing fits anywhere
+                    if (!occupied.isRegionVacant(x, y, minSpanX, minSpanY)) {
+                        continue;
+                    }
+                    xSize = minSpanX;
+                    ySize = minSpanY;
+
+                    // We know that the item will fit at _some_ acceptable size, now let's see
+                    // how big we can make it. We'll alternate between incrementing x and y spans
+                    // until we hit a limit.
+                    boolean incX = true;
+                    boolean hitMaxX = xSize >= spanX;
+                    boolean hitMaxY = ySize >= spanY;
+                    while (!(hitMaxX && hitMaxY)) {
+                        if (incX && !hitMaxX) {
+                            if (x + xSize > countX - 1 ||
+                                    !occupied.isRegionVacant(x + xSize, y, 1, ySize)) {
+                                // We can't move out horizontally
+                                hitMaxX = true;
+                            } else {
+                                xSize++;
+                            }
+                        } else if (!hitMaxY) {
+                            if (y + ySize > countY - 1 ||
+                                    !occupied.isRegionVacant(x, y + ySize, xSize, 1)) {
+                                // We can't move out vertically
+                                hitMaxY = true;
+                            } else {
+                                ySize++;
+                            }
+                        }
+                        hitMaxX |= xSize >= spanX;
+                        hitMaxY |= ySize >= spanY;
+                        incX = !incX;
+                    }
+                }
+                final int[] cellXY = mTmpPoint;
+                regionToCenterPoint(x, y, 1, 1, cellXY);
+
+                // We verify that the current rect is not a sub-rect of any of our previous
+                // candidates. In this case, the current rect is disqualified in favour of the
+                // containing rect.
+                Rect currentRect = mTempRects[validRegionCount];
+                currentRect.set(x, y, x + xSize, y + ySize);
+                boolean contained = false;
+                for (int i = 0; i < validRegionCount; i++) {
+                    if (mTempRects[i].contains(currentRect)) {
+                        contained = true;
+                        break;
+                    }
+                }
+                validRegionCount++;
+                double distance = Math.sqrt(Math.pow(cellXY[0] - pixelX, 2)
+                        + Math.pow(cellXY[1] - pixelY, 2));
+
+                if ((distance <= bestDistance && !contained) ||
+                        currentRect.contains(bestRect)) {
+                    bestDistance = distance;
+                    bestXY[0] = x;
+                    bestXY[1] = y;
+                    if (resultSpan != null) {
+                        resultSpan[0] = xSize;
+                        resultSpan[1] = ySize;
+                    }
+                    bestRect.set(currentRect);
+                }
+            }
+        }
+
+        // Return -1, -1 if no suitable location found
+        if (bestDistance == Double.MAX_VALUE) {
+            bestXY[0] = -1;
+            bestXY[1] = -1;
+        }
+        return bestXY;
+    }
+
+    /**
+     * Find a vacant area that will fit the given bounds nearest the requested
+     * cell location, and will also weigh in a suggested direction vector of the
+     * desired location. This method computers distance based on unit grid distances,
+     * not pixel distances.
+     *
+     * @param cellX The X cell nearest to which you want to search for a vacant area.
+     * @param cellY The Y cell nearest which you want to search for a vacant area.
+     * @param spanX Horizontal span of the object.
+     * @param spanY Vertical span of the object.
+     * @param direction The favored direction in which the views should move from x, y
+     * @param occupied The cells of the layout which are occupied
+     * @param blockOccupied The cells of the specified block (cellX, cellY, spanX, spanY) which
+     *        are occupied, from its top left corner, or null if all of them are. This is used
+     *        when try to move a group of items.
+     * @param result Array in which to place the result
+     * @return The X, Y cell of a vacant area that can contain this object,
+     *         nearest the requested location.
+     */
+    private int[] findNearestArea(int cellX, int cellY, int spanX, int spanY, int[] direction,
+            OccupancyBitmap occupied, OccupancyBitmap blockOccupied, int[] result) {
+        // Keep track of best-scoring drop area
+        final int[] bestXY = result;
+        float bestDistance = Float.MAX_VALUE;
+        int bestDirectionScore = Integer.MIN_VALUE;
+
+        final int countX = mCountX;
+        final int countY = mCountY;
+
+        for (int y = 0; y < countY - (spanY - 1); y++) {
+            for (int x = 0; x < countX - (spanX - 1); x++) {
+                // First, let's see if this thing fits anywhere
+                if (blockOccupied == null ? !occupied.isRegionVacant(x, y, spanX, spanY) :
+                        !occupied.isRegionVacant(x, y, blockOccupied, spanY)) {
+                    continue;
+                }
+
+                float distance = (float)
+                        Math.sqrt((x - cellX) * (x - cellX) + (y - cellY) * (y - cellY));
+                int[] curDirection = mTmpPoint;
+                computeDirectionVector(x - cellX, y - cellY, curDirection);
+                // The direction score is just the dot product of the two candidate direction
+                // and that passed in.
+                int curDirectionScore = direction[0] * curDirection[0] +
+                        direction[1] * curDirection[1];
+                if (Float.compare(distance,  bestDistance) < 0 || (Float.compare(distance,
+                        bestDistance) == 0 && curDirectionScore > bestDirectionScore)) {
+                    bestDistance = distance;
+                    bestDirectionScore = curDirectionScore;
+                    bestXY[0] = x;
+                    bestXY[1] = y;
+                }
+            }
+        }
+
+        // Return -1, -1 if no suitable location found
+        if (bestDistance == Float.MAX_VALUE) {
+            bestXY[0] = -1;
+            bestXY[1] = -1;
+        }
+        return bestXY;
+    }
+
+    private boolean addItemToTempLocation(int item, Rect rectOccupiedByPotentialDrop,
+            int[] direction, ItemConfiguration currentState) {
+        CellAndSpan c = currentState.map[item];
+        boolean success = false;
+        mTmpOccupied.markCells(c.x, c.y, c.spanX, c.spanY, false);
+        markCellsForRect(rectOccupiedByPotentialDrop, mTmpOccupied, true);
+
+        findNearestArea(c.x, c.y, c.spanX, c.spanY, direction, mTmpOccupied, null, mTempLocation);
+
+        if (mTempLocation[0] >= 0 && mTempLocation[1] >= 0) {
+            c.x = mTempLocation[0];
+            c.y = mTempLocation[1];
+            success = true;
+        }
+        mTmpOccupied.markCells(c.x, c.y, c.spanX, c.spanY, true);
+        return success;
+    }
+
+    /**
+     * This helper class defines a cluster of items. It helps with defining complex edges
+     * of the cluster and determining how those edges interact with other items. The edges
+     * essentially define a fine-grained boundary around the cluster of items -- like a more
+     * precise version of a bounding box.
+     */
+    private class ItemCluster {
+        final static int LEFT = 0;
+        final static int TOP = 1;
+        final static int RIGHT = 2;
+        final static int BOTTOM = 3;
+
+        final int[] items = new int[mCapacity];
+        int count;
+        final boolean[] contains = new boolean[mCapacity];
+        ItemConfiguration config;
+        Rect boundingRect = new Rect();
+
+        int[] leftEdge = new int[mCountY];
+        int[] rightEdge = new int[mCountY];
+        int[] topEdge = new int[mCountX];
+        int[] bottomEdge = new int[mCountX];
+        boolean leftEdgeDirty, rightEdgeDirty, topEdgeDirty, bottomEdgeDirty, boundingRectDirty;
+
+        void set(int[] items, int count, ItemConfiguration config) {
+            for (int i = 0; i < mItemCount; i++) {
+                contains[i] = false;
+            }
+            for (int i = 0; i < count; i++) {
+                this.items[i] = items[i];
+                contains[items[i]] = true;
+            }
+            this.count = count;
+            this.config = config;
+            resetEdges();
+        }
+
+        void resetEdges() {
+            for (int i = 0; i < mCountX; i++) {
+                topEdge[i] = -1;
+                bottomEdge[i] = -1;
+            }
+            for (int i = 0; i < mCountY; i++) {
+                leftEdge[i] = -1;
+                rightEdge[i] = -1;
+            }
+            leftEdgeDirty = true;
+            rightEdgeDirty = true;
+            bottomEdgeDirty = true;
+            topEdgeDirty = true;
+            boundingRectDirty = true;
+        }
+
+        void computeEdge(int which, int[] edge) {
+            for (int i = 0; i < count; i++) {
+                CellAndSpan cs = config.map[items[i]];
+                switch (which) {
+                    case LEFT:
+                        int left = cs.x;
+                        for (int j = cs.y; j < cs.y + cs.spanY; j++) {
+                            if (left < edge[j] || edge[j] < 0) {
+                                edge[j] = left;
+                            }
+                        }
+                        break;
+                    case RIGHT:
+                        int right = cs.x + cs.spanX;
+                        for (int j = cs.y; j < cs.y + cs.spanY; j++) {
+                            if (right > edge[j]) {
+                                edge[j] = right;
+                            }
+                        }
+                        break;
+                    case TOP:
+                        int top = cs.y;
+                        for (int j = cs.x; j < cs.x + cs.spanX; j++) {
+                            if (top < edge[j] || edge[j] < 0) {
+                                edge[j] = top;
+                            }
+                        }
+                        break;
+                    case BOTTOM:
+                        int bottom = cs.y + cs.spanY;
+                        for (int j = cs.x; j < cs.x + cs.spanX; j++) {
+                            if (bottom > edge[j]) {
+                                edge[j] = bottom;
+                            }
+                        }
+                        break;
+                }
+            }
+        }
+
+        boolean isItemTouchingEdge(int item, int whichEdge) {
+            CellAndSpan cs = config.map[item];
+
+            int[] edge = getEdge(whichEdge);
+
+            switch (whichEdge) {
+                case LEFT:
+                    for (int i = cs.y; i < cs.y + cs.spanY; i++) {
+                        if (edge[i] == cs.x + cs.spanX) {
+                            return true;
+                        }
+                    }
+                    break;
+                case RIGHT:
+                    for (int i = cs.y; i < cs.y + cs.spanY; i++) {
+                        if (edge[i] == cs.x) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TOP:
+                    for (int i = cs.x; i < cs.x + cs.spanX; i++) {
+                        if (edge[i] == cs.y + cs.spanY) {
+                            return true;
+                        }
+                    }
+                    break;
+                case BOTTOM:
+                    for (int i = cs.x; i < cs.x + cs.spanX; i++) {
+                        if (edge[i] == cs.y) {
+                            return true;
+                        }
+                    }
+                    break;
+            }
+            return false;
+        }
+
+        void shift(int whichEdge, int delta) {
+            for (int i = 0; i < count; i++) {
+                CellAndSpan c = config.map[items[i]];
+                switch (whichEdge) {
+                    case LEFT:
+                        c.x -= delta;
+                        break;
+                    case RIGHT:
+                        c.x += delta;
+                        break;
+                    case TOP:
+                        c.y -= delta;
+                        break;
+                    case BOTTOM:
+                    default:
+                        c.y += delta;
+                        break;
+                }
+            }
+            resetEdges();
+        }
+
+        public void addItem(int item) {
+            items[count++] = item;
+            contains[item] = true;
+            resetEdges();
+        }
+
+        public Rect getBoundingRect() {
+            if (boundingRectDirty) {
+                for (int i = 0; i < count; i++) {
+                    CellAndSpan c = config.map[items[i]];
+                    if (i == 0) {
+                        boundingRect.set(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
+                    } else {
+                        boundingRect.union(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
+                    }
+                }
+            }
+            return boundingRect;
+        }
+
+        public int[] getEdge(int which) {
+            switch (which) {
+                case LEFT:
+                    return getLeftEdge();
+                case RIGHT:
+                    return getRightEdge();
+                case TOP:
+                    return getTopEdge();
+                case BOTTOM:
+                default:
+                    return getBottomEdge();
+            }
+        }
+
+        public int[] getLeftEdge() {
+            if (leftEdgeDirty) {
+                computeEdge(LEFT, leftEdge);
+            }
+            return leftEdge;
+        }
+
+        public int[] getRightEdge() {
+            if (rightEdgeDirty) {
+                computeEdge(RIGHT, rightEdge);
+            }
+            return rightEdge;
+        }
+
+        public int[] getTopEdge() {
+            if (topEdgeDirty) {
+                computeEdge(TOP, topEdge);
+            }
+            return topEdge;
+        }
+
+        public int[] getBottomEdge() {
+            if (bottomEdgeDirty) {
+                computeEdge(BOTTOM, bottomEdge);
+            }
+            return bottomEdge;
+        }
+
+        int compare(int whichEdge, int left, int right) {
+            CellAndSpan l = config.map[left];
+            CellAndSpan r = config.map[right];
+            switch (whichEdge) {
+                case LEFT:
+                    return (r.x + r.spanX) - (l.x + l.spanX);
+                case RIGHT:
+                    return l.x - r.x;
+                case TOP:
+                    return (r.y + r.spanY) - (l.y + l.spanY);
+                case BOTTOM:
+                default:
+                    return l.y - r.y;
+            }
+        }
+
+        public void sortConfigurationForEdgePush(int edge) {
+            // A stable insertion sort, there are only ever a few dozen items
+            final int[] sorted = config.sortedItems;
+            for (int i = 1; i < config.count; i++) {
+                final int item = sorted[i];
+                int j = i - 1;
+                while (j >= 0 && compare(edge, sorted[j], item) > 0) {
+                    sorted[j + 1] = sorted[j];
+                    j--;
+                }
+                sorted[j + 1] = item;
+            }
+        }
+    }
+
+    private boolean pushItemsToTempLocation(int[] items, int count,
+            Rect rectOccupiedByPotentialDrop, int[] direction, ItemConfiguration currentState) {
+
+        ItemCluster cluster = mCluster;
+        cluster.set(items, count, currentState);
+        Rect clusterRect = cluster.getBoundingRect();
+        int whichEdge;
+        int pushDistance;
+        boolean fail = false;
+
+        // Determine the edge of the cluster that will be leading the push and how far
+        // the cluster must be shifted.
+        if (direction[0] < 0) {
+            whichEdge = ItemCluster.LEFT;
+            pushDistance = clusterRect.right - rectOccupiedByPotentialDrop.left;
+        } else if (direction[0] > 0) {
+            whichEdge = ItemCluster.RIGHT;
+            pushDistance = rectOccupiedByPotentialDrop.right - clusterRect.left;
+        } else if (direction[1] < 0) {
+            whichEdge = ItemCluster.TOP;
+            pushDistance = clusterRect.bottom - rectOccupiedByPotentialDrop.top;
+        } else {
+            whichEdge = ItemCluster.BOTTOM;
+            pushDistance = rectOccupiedByPotentialDrop.bottom - clusterRect.top;
+        }
+
+        // Break early for invalid push distance.
+        if (pushDistance <= 0) {
+            return false;
+        }
+
+        // Mark the occupied state as false for the group of items we want to move.
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.map[items[i]];
+            mTmpOccupied.markCells(c.x, c.y, c.spanX, c.spanY, false);
+        }
+
+        // We save the current configuration -- if we fail to find a solution we will revert
+        // to the initial state. The process of finding a solution modifies the configuration
+        // in place, hence the need for revert in the failure case.
+        currentState.save();
+
+        // The pushing algorithm is simplified by considering the items in the order in which
+        // they would be pushed by the cluster. For example, if the cluster is leading with its
+        // left edge, we consider sort the items by their right edge, from right to left.
+        cluster.sortConfigurationForEdgePush(whichEdge);
+
+        while (pushDistance > 0 && !fail && !mCancelled) {
+            for (int i = 0; i < currentState.count; i++) {
+                final int item = currentState.sortedItems[i];
+                // For each item that isn't in the cluster, we see if the leading edge of the
+                // cluster is contacting the edge of that item. If so, we add that item to the
+                // cluster.
+                if (!cluster.contains[item] && item != mDragItem) {
+                    if (cluster.isItemTouchingEdge(item, whichEdge)) {
+                        if (!mCanReorder[item]) {
+                            // The push solution includes the all apps button, this is not viable.
+                            fail = true;
+                            break;
+                        }
+                        cluster.addItem(item);
+                        CellAndSpan c = currentState.map[item];
+
+                        // Adding item to cluster, mark it as not occupied.
+                        mTmpOccupied.markCells(c.x, c.y, c.spanX, c.spanY, false);
+                    }
+                }
+            }
+            pushDistance--;
+
+            // The cluster has been completed, now we move the whole thing over in the appropriate
+            // direction.
+            cluster.shift(whichEdge, 1);
+        }
+
+        boolean foundSolution = false;
+        clusterRect = cluster.getBoundingRect();
+
+        // Due to the nature of the algorithm, the only check required to verify a valid solution
+        // is to ensure that completed shifted cluster lies completely within the cell layout.
+        if (!fail && !mCancelled && clusterRect.left >= 0 && clusterRect.right <= mCountX &&
+                clusterRect.top >= 0 && clusterRect.bottom <= mCountY) {
+            foundSolution = true;
+        } else {
+            currentState.restore();
+        }
+
+        // In either case, we set the occupied array as marked for the location of the items
+        for (int i = 0; i < cluster.count; i++) {
+            CellAndSpan c = currentState.map[cluster.items[i]];
+            mTmpOccupied.markCells(c.x, c.y, c.spanX, c.spanY, true);
+        }
+
+        return foundSolution;
+    }
+
+    private boolean addItemsToTempLocation(int[] items, int count,
+            Rect rectOccupiedByPotentialDrop, int[] direction, ItemConfiguration currentState) {
+        if (count == 0) return true;
+
+        boolean success = false;
+        Rect boundingRect = mBoundingRect;
+        // We construct a rect which represents the entire group of items passed in
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.map[items[i]];
+            if (i == 0) {
+                boundingRect.set(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
+            } else {
+                boundingRect.union(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
+            }
+        }
+
+        // Mark the occupied state as false for the group of items we want to move.
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.map[items[i]];
+            mTmpOccupied.markCells(c.x, c.y, c.spanX, c.spanY, false);
+        }
+
+        OccupancyBitmap blockOccupied = mBlockOccupied;
+        blockOccupied.clear();
+        int top = boundingRect.top;
+        int left = boundingRect.left;
+        // We mark more precisely which parts of the bounding rect are truly occupied, allowing
+        // for interlocking.
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.map[items[i]];
+            blockOccupied.markCells(c.x - left, c.y - top, c.spanX, c.spanY, true);
+        }
+
+        markCellsForRect(rectOccupiedByPotentialDrop, mTmpOccupied, true);
+
+        findNearestArea(boundingRect.left, boundingRect.top, boundingRect.width(),
+                boundingRect.height(), direction, mTmpOccupied, blockOccupied, mTempLocation);
+
+        // If we successfuly found a location by pushing the block of items, we commit it
+        if (mTempLocation[0] >= 0 && mTempLocation[1] >= 0) {
+            int deltaX = mTempLocation[0] - boundingRect.left;
+            int deltaY = mTempLocation[1] - boundingRect.top;
+            for (int i = 0; i < count; i++) {
+                CellAndSpan c = currentState.map[items[i]];
+                c.x += deltaX;
+                c.y += deltaY;
+            }
+            success = true;
+        }
+
+        // In either case, we set the occupied array as marked for the location of the items
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.map[items[i]];
+            mTmpOccupied.markCells(c.x, c.y, c.spanX, c.spanY, true);
+        }
+        return success;
+    }
+
+    private static void markCellsForRect(Rect r, OccupancyBitmap occupied, boolean value) {
+        occupied.markCells(r.left, r.top, r.width(), r.height(), value);
+    }
+
+    // This method tries to find a reordering solution which satisfies the push mechanic by trying
+    // to push items in each of the cardinal directions, in an order based on the direction vector
+    // passed.
+    private boolean attemptPushInDirection(int[] intersectingItems, int count, Rect occupied,
+            int[] direction, ItemConfiguration solution) {
+        if ((Math.abs(direction[0]) + Math.abs(direction[1])) > 1) {
+            // If the direction vector has two non-zero components, we try pushing
+            // separately in each of the components.
+            int temp = direction[1];
+            direction[1] = 0;
+
+            if (pushItemsToTempLocation(intersectingItems, count, occupied, direction, solution)) {
+                return true;
+            }
+            direction[1] = temp;
+            temp = direction[0];
+            direction[0] = 0;
+
+            if (pushItemsToTempLocation(intersectingItems, count, occupied, direction, solution)) {
+                return true;
+            }
+            // Revert the direction
+            direction[0] = temp;
+
+            // Now we try pushing in each component of the opposite direction
+            direction[0] *= -1;
+            direction[1] *= -1;
+            temp = direction[1];
+            direction[1] = 0;
+            if (pushItemsToTempLocation(intersectingItems, count, occupied, direction, solution)) {
+                return true;
+            }
+
+            direction[1] = temp;
+            temp = direction[0];
+            direction[0] = 0;
+            if (pushItemsToTempLocation(intersectingItems, count, occupied, direction, solution)) {
+                return true;
+            }
+            // revert the direction
+            direction[0] = temp;
+            direction[0] *= -1;
+            direction[1] *= -1;
+
+        } else {
+            // If the direction vector has a single non-zero component, we push first in the
+            // direction of the vector
+            if (pushItemsToTempLocation(intersectingItems, count, occupied, direction, solution)) {
+                return true;
+            }
+            // Then we try the opposite direction
+            direction[0] *= -1;
+            direction[1] *= -1;
+            if (pushItemsToTempLocation(intersectingItems, count, occupied, direction, solution)) {
+                return true;
+            }
+            // Switch the direction back
+            direction[0] *= -1;
+            direction[1] *= -1;
+
+            // If we have failed to find a push solution with the above, then we try
+            // to find a solution by pushing along the perpendicular axis.
+
+            // Swap the components
+            int temp = direction[1];
+            direction[1] = direction[0];
+            direction[0] = temp;
+            if (pushItemsToTempLocation(intersectingItems, count, occupied, direction, solution)) {
+                return true;
+            }
+
+            // Then we try the opposite direction
+            direction[0] *= -1;
+            direction[1] *= -1;
+            if (pushItemsToTempLocation(intersectingItems, count, occupied, direction, solution)) {
+                return true;
+            }
+            // Switch the direction back
+            direction[0] *= -1;
+            direction[1] *= -1;
+
+            // Swap the components back
+            temp = direction[1];
+            direction[1] = direction[0];
+            direction[0] = temp;
+        }
+        return false;
+    }
+
+    private boolean rearrangementExists(int cellX, int cellY, int spanX, int spanY,
+            int[] direction, ItemConfiguration solution) {
+        // Return early if get invalid cell positions
+        if (cellX < 0 || cellY < 0) return false;
+
+        mIntersectingCount = 0;
+        mOccupiedRect.set(cellX, cellY, cellX + spanX, cellY + spanY);
+
+        // Mark the desired location of the item currently being dragged.
+        if (mDragItem >= 0) {
+            CellAndSpan c = solution.map[mDragItem];
+            c.x = cellX;
+            c.y = cellY;
+        }
+        Rect r0 = mDropRect;
+        r0.set(cellX, cellY, cellX + spanX, cellY + spanY);
+        Rect r1 = mItemRect;
+        for (int i = 0; i < mItemCount; i++) {
+            if (i == mDragItem) continue;
+            CellAndSpan c = solution.map[i];
+            r1.set(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
+            if (Rect.intersects(r0, r1)) {
+                if (!mCanReorder[i]) {
+                    return false;
+                }
+                mIntersectingItems[mIntersectingCount++] = i;
+            }
+        }
+
+        // First we try to find a solution which respects the push mechanic. That is,
+        // we try to find a solution such that no displaced item travels through another item
+        // without also displacing that item.
+        if (attemptPushInDirection(mIntersectingItems, mIntersectingCount, mOccupiedRect,
+                direction, solution)) {
+            return true;
+        }
+
+        // Next we try moving the items as a block, but without requiring the push mechanic.
+        if (addItemsToTempLocation(mIntersectingItems, mIntersectingCount, mOccupiedRect,
+                direction, solution)) {
+            return true;
+        }
+
+        // Ok, they couldn't move as a block, let's move them individually
+        for (int i = 0; i < mIntersectingCount; i++) {
+            if (!addItemToTempLocation(mIntersectingItems[i], mOccupiedRect, direction,
+                    solution)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Returns a pair (x, y), where x,y are in {-1, 0, 1} corresponding to vector between
+     * the provided point and the provided cell
+     */
+    static void computeDirectionVector(float deltaX, float deltaY, int[] result) {
+        double angle = Math.atan(((float) deltaY) / deltaX);
+
+        result[0] = 0;
+        result[1] = 0;
+        if (Math.abs(Math.cos(angle)) > 0.5f) {
+            result[0] = (int) Math.signum(deltaX);
+        }
+        if (Math.abs(Math.sin(angle)) > 0.5f) {
+            result[1] = (int) Math.signum(deltaY);
+        }
+    }
+
+    private ItemConfiguration simpleSwap(int pixelX, int pixelY, int minSpanX, int minSpanY,
+            int spanX, int spanY, int[] direction, boolean decX, ItemConfiguration solution) {
+        if (mCancelled) {
+            solution.isSolution = false;
+            return solution;
+        }
+        // Copy the current state into the solution. This solution will be manipulated as necessary.
+        copyCurrentStateToSolution(solution);
+        // Copy the current occupied array into the temporary occupied array. This array will be
+        // manipulated as necessary to find a solution.
+        mTmpOccupied.copyFrom(mOccupied);
+
+        // We find the nearest cell into which we would place the dragged item, assuming there's
+        // nothing in its way.
+        int result[] = findNearestArea(pixelX, pixelY, spanX, spanY, spanX, spanY, false,
+                mSwapCell, null, mOccupied);
+
+        // First we try the exact nearest position of the item being dragged,
+        // we will then want to try to move this around to other neighbouring positions
+        boolean success = rearrangementExists(result[0], result[1], spanX, spanY, direction,
+                solution);
+
+        if (!success) {
+            // We try shrinking the widget down to size in an alternating pattern, shrink 1 in
+            // x, then 1 in y etc.
+            if (spanX > minSpanX && (minSpanY == spanY || decX)) {
+                return simpleSwap(pixelX, pixelY, minSpanX, minSpanY, spanX - 1, spanY, direction,
+                        false, solution);
+            } else if (spanY > minSpanY) {
+                return simpleSwap(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY - 1, direction,
+                        true, solution);
+            }
+            solution.isSolution = false;
+        } else {
+            solution.isSolution = true;
+            solution.dragViewX = result[0];
+            solution.dragViewY = result[1];
+            solution.dragViewSpanX = spanX;
+            solution.dragViewSpanY = spanY;
+        }
+        return solution;
+    }
+
+    private ItemConfiguration findConfigurationNoShuffle(int pixelX, int pixelY, int minSpanX,
+            int minSpanY, int spanX, int spanY, ItemConfiguration solution) {
+        int[] result = mNoShuffleCell;
+        int[] resultSpan = mNoShuffleSpan;
+        findNearestArea(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY, true, result,
+                resultSpan, mOccupied);
+        if (result[0] >= 0 && result[1] >= 0) {
+            copyCurrentStateToSolution(solution);
+            solution.dragViewX = result[0];
+            solution.dragViewY = result[1];
+            solution.dragViewSpanX = resultSpan[0];
+            solution.dragViewSpanY = resultSpan[1];
+            solution.isSolution = true;
+        } else {
+            solution.isSolution = false;
+        }
+        return solution;
+    }
+
+    private void copyCurrentStateToSolution(ItemConfiguration solution) {
+        for (int i = 0; i < mItemCount; i++) {
+            mItems[i].copy(solution.map[i]);
+        }
+        solution.count = mItemCount;
+    }
+
+    /**
+     * The cell and span of every item of the layout, by index, and where the dragged item goes.
+     * Only the first count entries are items of the layout.
+     */
+    static class ItemConfiguration {
+        final CellAndSpan[] map;
+        private final CellAndSpan[] savedMap;
+        final int[] sortedItems;
+        int count;
+        boolean isSolution = false;
+        int dragViewX, dragViewY, dragViewSpanX, dragViewSpanY;
+
+        ItemConfiguration(int capacity) {
+            map = new CellAndSpan[capacity];
+            savedMap = new CellAndSpan[capacity];
+            sortedItems = new int[capacity];
+            for (int i = 0; i < capacity; i++) {
+                map[i] = new CellAndSpan();
+                savedMap[i] = new CellAndSpan();
+                sortedItems[i] = i;
+            }
+        }
+
+        void save() {
+            // Copy current state into savedMap
+            for (int i = 0; i < count; i++) {
+                map[i].copy(savedMap[i]);
+            }
+        }
+
+        void restore() {
+            // Restore current state from savedMap
+            for (int i = 0; i < count; i++) {
+                savedMap[i].copy(map[i]);
+            }
+        }
+
+        int area() {
+            return dragViewSpanX * dragViewSpanY;
+        }
+    }
+
+    static class CellAndSpan {
+        int x, y;
+        int spanX, spanY;
+
+        public CellAndSpan() {
+        }
+
+        public void copy(CellAndSpan copy) {
+            copy.x = x;
+            copy.y = y;
+            copy.spanX = spanX;
+            copy.spanY = spanY;
+        }
+
+        public String toString() {
+            return "(" + x + ", " + y + ": " + spanX + ", " + spanY + ")";
+        }
+    }
+}
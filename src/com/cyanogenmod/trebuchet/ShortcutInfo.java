@@ -61,9 +61,16 @@ class ShortcutInfo extends ItemInfo {
     Intent.ShortcutIconResource iconResource;
 
     /**
-     * The application icon.
+     * The application icon. Decoded icons can be set by the loader thread.
      */
-    private Bitmap mIcon;
+    private volatile Bitmap mIcon;
+
+    /**
+     * The compressed icon as read from the favorites table. Loading keeps the bytes around and
+     * the icon is only decoded when the page holding this item is about to be bound. Guarded
+     * by this, as either the loader or the UI thread may get to decode it first.
+     */
+    private byte[] mIconBlob;
 
     /**
      * Title change listener
@@ -93,6 +100,9 @@ class ShortcutInfo extends ItemInfo {
             iconResource.resourceName = info.iconResource.resourceName;
         }
         mIcon = info.mIcon; // TODO: should make a copy here.  maybe we don't need this ctor at all
+        synchronized (info) {
+            mIconBlob = info.mIconBlob;
+        }
         customIcon = info.customIcon;
     }
 
@@ -105,13 +115,27 @@ class ShortcutInfo extends ItemInfo {
     }
 
     public void setIcon(Bitmap b) {
-        mIcon = b;
+        synchronized (this) {
+            mIcon = b;
+            mIconBlob = null;
+        }
         for (ShortcutListener i : mListeners) {
             i.onIconChanged(this);
         }
     }
 
     public Bitmap getIcon(IconCache iconCache) {
+        final byte[] data = mIcon == null ? takeIconBlob() : null;
+        if (data != null) {
+            // Nobody decoded the icon ahead of binding, do it now, the same way the loader does
+            mIcon = iconCache.decodeIcon(data);
+            if (mIcon == null) {
+                // Same as a stored icon that can't be decoded while loading
+                mIcon = iconCache.getDefaultIcon();
+                customIcon = false;
+                usingFallbackIcon = true;
+            }
+        }
         if (mIcon == null) {
             updateIcon(iconCache);
         }
@@ -119,10 +143,38 @@ class ShortcutInfo extends ItemInfo {
     }
 
     public void updateIcon(IconCache iconCache) {
-        mIcon = iconCache.getIcon(intent);
+        synchronized (this) {
+            mIcon = iconCache.getIcon(intent);
+            mIconBlob = null;
+        }
         usingFallbackIcon = iconCache.isDefaultIcon(mIcon);
     }
 
+    /**
+     * Defers decoding of the icon until the item is bound.
+     */
+    synchronized void setIconBlob(byte[] data) {
+        mIcon = null;
+        mIconBlob = data;
+    }
+
+    synchronized boolean hasPendingIcon() {
+        return mIcon == null && mIconBlob != null;
+    }
+
+    private synchronized byte[] getPendingIconBlob() {
+        return mIcon == null ? mIconBlob : null;
+    }
+
+    /**
+     * Returns the compressed icon that is still waiting to be decoded, if any, and forgets it.
+     */
+    synchronized byte[] takeIconBlob() {
+        byte[] data = mIconBlob;
+        mIconBlob = null;
+        return data;
+    }
+
     /**
      * Creates the application intent based on a component name and various launch flags.
      * Sets {@link #itemType} to {@link LauncherSettings.BaseLauncherColumns#ITEM_TYPE_APPLICATION}.
@@ -167,7 +219,13 @@ class ShortcutInfo extends ItemInfo {
         if (customIcon) {
             values.put(LauncherSettings.BaseLauncherColumns.ICON_TYPE,
                     LauncherSettings.BaseLauncherColumns.ICON_TYPE_BITMAP);
-            writeBitmap(values, mIcon);
+            final byte[] data = getPendingIconBlob();
+            if (data != null) {
+                // Still undecoded, the bytes are exactly what we read from the db
+                values.put(LauncherSettings.BaseLauncherColumns.ICON, data);
+            } else {
+                writeBitmap(values, mIcon);
+            }
         } else {
             if (!usingFallbackIcon) {
                 writeBitmap(values, mIcon);
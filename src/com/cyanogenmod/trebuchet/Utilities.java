@@ -19,6 +19,7 @@ package com.cyanogenmod.trebuchet;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.BlurMaskFilter;
 import android.graphics.Canvas;
 import android.graphics.ColorMatrix;
@@ -84,6 +85,18 @@ final class Utilities {
         }
     }
 
+    /**
+     * Decodes an icon stored in the database into a bitmap suitable for the all apps view, or
+     * returns null if the data can't be decoded.
+     */
+    static Bitmap decodeIconBitmap(byte[] data, Context context) {
+        try {
+            return createIconBitmap(BitmapFactory.decodeByteArray(data, 0, data.length), context);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      * Returns a bitmap suitable for the all apps view.
      */
@@ -4,6 +4,7 @@ import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
@@ -23,7 +24,10 @@ import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.TypedValue;
 
 import com.cyanogenmod.trebuchet.R;
 
@@ -31,6 +35,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -131,14 +136,44 @@ public class WidgetPreviewLoader {
 
     private CacheDb mDb;
 
+    // Previews currently handed out to views
     private HashMap<String, WeakReference<Bitmap>> mLoadedPreviews;
-    private ArrayList<SoftReference<Bitmap>> mUnusedBitmaps;
+    // Previews recycled by their views, kept resident up to a byte budget so scrolling back to
+    // them doesn't hit the db. Guarded by mLoadedPreviews.
+    private LruCache<String, Bitmap> mPreviewCache;
+    // Bitmaps evicted from mPreviewCache, reused to decode or generate new previews into
+    private ArrayList<Bitmap> mUnusedBitmaps;
+    private static final int MAX_UNUSED_BITMAPS = 4;
+
+    // Preview size of the last run, so previews can be generated before the widgets tab is laid out
+    private static final String PREVIEW_SIZE_PREF = "widget_preview_size";
+    // Pause after each preview generated ahead of time, so it never hogs the cpu
+    private static final int PREWARM_ITEM_DELAY_MS = 50;
+
+    // Memory tier statistics, guarded by mLoadedPreviews
+    private int mCacheHits;
+    private int mCacheMisses;
+    private int mCacheEvictions;
     private static HashSet<String> sInvalidPackages;
 
+    // Installed version of each package we have looked up, used to validate db rows
+    private static final HashMap<String, PackageVersion> sPackageVersions =
+            new HashMap<String, PackageVersion>();
+
     static {
         sInvalidPackages = new HashSet<String>();
     }
 
+    private static class PackageVersion {
+        final long lastUpdateTime;
+        final int versionCode;
+
+        PackageVersion(long lastUpdateTime, int versionCode) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.versionCode = versionCode;
+        }
+    }
+
     public WidgetPreviewLoader(Launcher launcher) {
         mContext = mLauncher = launcher;
         mPackageManager = mContext.getPackageManager();
@@ -147,44 +182,165 @@ public class WidgetPreviewLoader {
         mIconCache = app.getIconCache();
         mDb = app.getWidgetPreviewCacheDb();
         mLoadedPreviews = new HashMap<String, WeakReference<Bitmap>>();
-        mUnusedBitmaps = new ArrayList<SoftReference<Bitmap>>();
+        mUnusedBitmaps = new ArrayList<Bitmap>();
+        final int cacheSize = mContext.getResources().getInteger(
+                R.integer.config_widgetPreviewCacheSizeKb) * 1024;
+        mPreviewCache = new LruCache<String, Bitmap>(Math.max(cacheSize, 1)) {
+            @Override
+            protected int sizeOf(String name, Bitmap preview) {
+                return preview.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String name, Bitmap oldPreview,
+                    Bitmap newPreview) {
+                if (evicted) {
+                    mCacheEvictions++;
+                }
+                // Entries taken out by getPreview() are in use again, anything else can be reused
+                if ((evicted || newPreview != null) && oldPreview != newPreview) {
+                    addUnusedBitmap(oldPreview);
+                }
+            }
+        };
     }
 
     public void setPreviewSize(int previewWidth, int previewHeight,
             PagedViewCellLayout widgetSpacingLayout) {
+        if (previewWidth != mPreviewBitmapWidth || previewHeight != mPreviewBitmapHeight) {
+            // Neither the resident previews nor the pooled bitmaps fit the new size
+            synchronized (mLoadedPreviews) {
+                mPreviewCache.evictAll();
+            }
+            synchronized (mUnusedBitmaps) {
+                mUnusedBitmaps.clear();
+            }
+        }
         mPreviewBitmapWidth = previewWidth;
         mPreviewBitmapHeight = previewHeight;
-        mSize = previewWidth + "x" + previewHeight;
+        final String size = previewWidth + "x" + previewHeight;
+        if (!size.equals(mSize)) {
+            mContext.getSharedPreferences(LauncherApplication.getSharedPreferencesKey(),
+                    Context.MODE_PRIVATE).edit().putString(PREVIEW_SIZE_PREF, size).apply();
+        }
+        mSize = size;
         mWidgetSpacingLayout = widgetSpacingLayout;
     }
 
     public Bitmap getPreview(final Object o) {
         String name = getObjectName(o);
         // check if the package is valid
-        boolean packageValid = true;
-        synchronized(sInvalidPackages) {
-            packageValid = !sInvalidPackages.contains(getObjectPackage(o));
-        }
-        if (!packageValid) {
+        if (!isPackageValid(o)) {
             return null;
         }
-        if (packageValid) {
+        Bitmap preview = getLoadedPreview(name);
+        if (preview != null) {
+            return preview;
+        }
+
+        // not in cache; we need to load it from the db
+        Bitmap unusedBitmap = obtainUnusedBitmap();
+        preview = readFromDb(name, getObjectPackage(o), unusedBitmap);
+        if (preview != null) {
             synchronized(mLoadedPreviews) {
-                // check if it exists in our existing cache
-                if (mLoadedPreviews.containsKey(name) && mLoadedPreviews.get(name).get() != null) {
-                    return mLoadedPreviews.get(name).get();
+                mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
+            }
+            return preview;
+        }
+        // it's not in the db... we need to generate it
+        return generateAndStorePreview(o, name, unusedBitmap);
+    }
+
+    /**
+     * Returns the previews of all the items of a page, in order, or null for items whose
+     * package is being removed. Everything the memory tier doesn't hold is read with a single
+     * db query, and only the previews the db doesn't have are generated.
+     *
+     * @param task The task loading the page, if any. It is checked before each preview that has
+     *        to be decoded or generated. Once it is cancelled the previews resolved so far are
+     *        returned, with null for the rest, so the caller can recycle them.
+     */
+    public ArrayList<Bitmap> getPreviews(ArrayList<Object> items, AppsCustomizeAsyncTask task) {
+        final int count = items.size();
+        final ArrayList<Bitmap> previews = new ArrayList<Bitmap>(count);
+        final ArrayList<Integer> misses = new ArrayList<Integer>();
+        final ArrayList<String> missNames = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            final Object o = items.get(i);
+            Bitmap preview = null;
+            if (isPackageValid(o)) {
+                final String name = getObjectName(o);
+                preview = getLoadedPreview(name);
+                if (preview == null) {
+                    misses.add(i);
+                    missNames.add(name);
                 }
             }
+            previews.add(preview);
+        }
+        if (misses.isEmpty()) {
+            return previews;
+        }
+
+        if (!readFromDb(misses, missNames, previews, task)) {
+            return previews;
+        }
+        for (int i = 0; i < misses.size(); i++) {
+            final int index = misses.get(i);
+            if (previews.get(index) != null) {
+                continue;
+            }
+            if (task != null) {
+                // Don't keep the cpu from the visible page once we are scrolled away from
+                if (task.isCancelled()) {
+                    return previews;
+                }
+                task.syncThreadPriority();
+            }
+            previews.set(index, generateAndStorePreview(items.get(index), missNames.get(i),
+                    obtainUnusedBitmap()));
+        }
+        return previews;
+    }
+
+    private boolean isPackageValid(Object o) {
+        synchronized(sInvalidPackages) {
+            return !sInvalidPackages.contains(getObjectPackage(o));
+        }
+    }
+
+    /**
+     * Returns the preview if it is already handed out, or still resident in the memory tier.
+     */
+    private Bitmap getLoadedPreview(String name) {
+        synchronized(mLoadedPreviews) {
+            // check if it exists in our existing cache
+            if (mLoadedPreviews.containsKey(name) && mLoadedPreviews.get(name).get() != null) {
+                return mLoadedPreviews.get(name).get();
+            }
+            // or if it is still resident in the memory tier
+            Bitmap cached = mPreviewCache.remove(name);
+            if (cached != null) {
+                mCacheHits++;
+                mLoadedPreviews.put(name, new WeakReference<Bitmap>(cached));
+                return cached;
+            }
+            mCacheMisses++;
+            return null;
         }
+    }
 
+    /**
+     * Returns a cleared bitmap of the preview size, from the pool if possible.
+     */
+    private Bitmap obtainUnusedBitmap() {
         Bitmap unusedBitmap = null;
         synchronized(mUnusedBitmaps) {
-            // not in cache; we need to load it from the db
             while ((unusedBitmap == null || !unusedBitmap.isMutable() ||
                     unusedBitmap.getWidth() != mPreviewBitmapWidth ||
                     unusedBitmap.getHeight() != mPreviewBitmapHeight)
                     && mUnusedBitmaps.size() > 0) {
-                unusedBitmap = mUnusedBitmaps.remove(0).get();
+                unusedBitmap = mUnusedBitmaps.remove(0);
             }
             if (unusedBitmap != null) {
                 final Canvas c = mCachedAppWidgetPreviewCanvas.get();
@@ -198,40 +354,133 @@ public class WidgetPreviewLoader {
             unusedBitmap = Bitmap.createBitmap(mPreviewBitmapWidth, mPreviewBitmapHeight,
                     Bitmap.Config.ARGB_8888);
         }
+        return unusedBitmap;
+    }
 
-        Bitmap preview = null;
+    private Bitmap generateAndStorePreview(final Object o, String name, Bitmap unusedBitmap) {
+        final Bitmap generatedPreview = generatePreview(o, unusedBitmap);
+        if (generatedPreview != unusedBitmap) {
+            throw new RuntimeException("generatePreview is not recycling the bitmap " + o);
+        }
 
-        if (packageValid) {
-            preview = readFromDb(name, unusedBitmap);
+        synchronized(mLoadedPreviews) {
+            mLoadedPreviews.put(name, new WeakReference<Bitmap>(generatedPreview));
         }
 
-        if (preview != null) {
-            synchronized(mLoadedPreviews) {
-                mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
+        // write to db on a thread pool... this can be done lazily and improves the performance
+        // of the first time widget previews are loaded
+        new AsyncTask<Void, Void, Void>() {
+            public Void doInBackground(Void ... args) {
+                writeToDb(o, generatedPreview);
+                return null;
             }
-            return preview;
-        } else {
-            // it's not in the db... we need to generate it
-            final Bitmap generatedPreview = generatePreview(o, unusedBitmap);
-            preview = generatedPreview;
-            if (preview != unusedBitmap) {
-                throw new RuntimeException("generatePreview is not recycling the bitmap " + o);
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
+
+        return generatedPreview;
+    }
+
+    /**
+     * Sets the preview size used by the last run, unless a size is already known. Returns
+     * false if there isn't any.
+     */
+    boolean restorePreviewSize(PagedViewCellLayout widgetSpacingLayout) {
+        if (mSize != null) {
+            return true;
+        }
+        String size = mContext.getSharedPreferences(LauncherApplication.getSharedPreferencesKey(),
+                Context.MODE_PRIVATE).getString(PREVIEW_SIZE_PREF, null);
+        if (size == null) {
+            return false;
+        }
+        String[] dimensions = size.split("x");
+        try {
+            setPreviewSize(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]),
+                    widgetSpacingLayout);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Invalid saved preview size " + size);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generates and stores the previews the db doesn't have yet, so the first visit to their
+     * page doesn't have to. Runs on a background thread, a preview at a time, and stops as soon
+     * as the task is cancelled or the preview size changes.
+     */
+    void prewarmPreviews(ArrayList<Object> items, AsyncTask<?, ?, ?> task) {
+        final String size = mSize;
+        final int width = mPreviewBitmapWidth;
+        final int height = mPreviewBitmapHeight;
+        if (size == null) {
+            return;
+        }
+
+        Bitmap preview = null;
+        int generated = 0;
+        for (Object o : items) {
+            if (task.isCancelled() || !size.equals(mSize)) {
+                break;
+            }
+            final String packageName = getObjectPackage(o);
+            synchronized (sInvalidPackages) {
+                if (sInvalidPackages.contains(packageName)) {
+                    continue;
+                }
+            }
+            final String name = getObjectName(o);
+            if (hasPreviewInDb(name, packageName, size)) {
+                continue;
             }
 
-            synchronized(mLoadedPreviews) {
-                mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
+            if (preview == null) {
+                preview = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } else {
+                final Canvas c = mCachedAppWidgetPreviewCanvas.get();
+                c.setBitmap(preview);
+                c.drawColor(0, PorterDuff.Mode.CLEAR);
+                c.setBitmap(null);
             }
+            try {
+                generatePreview(o, preview);
+            } catch (RuntimeException e) {
+                // Most likely the preview size changed under us
+                Log.w(TAG, "Stopped generating previews ahead of time", e);
+                break;
+            }
+            writeToDb(o, preview, size);
+            generated++;
 
-            // write to db on a thread pool... this can be done lazily and improves the performance
-            // of the first time widget previews are loaded
-            new AsyncTask<Void, Void, Void>() {
-                public Void doInBackground(Void ... args) {
-                    writeToDb(o, generatedPreview);
-                    return null;
-                }
-            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
+            try {
+                Thread.sleep(PREWARM_ITEM_DELAY_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (generated > 0) {
+            Log.d(TAG, "Generated " + generated + " previews ahead of time");
+        }
+    }
 
-            return preview;
+    private boolean hasPreviewInDb(String name, String packageName, String size) {
+        SQLiteDatabase db = mDb.getReadableDatabase();
+        Cursor result = db.query(CacheDb.TABLE_NAME,
+                new String[] { CacheDb.COLUMN_LAST_UPDATED, CacheDb.COLUMN_VERSION },
+                CacheDb.COLUMN_NAME + " = ? AND " + CacheDb.COLUMN_SIZE + " = ?",
+                new String[] { name, size },
+                null,
+                null,
+                null,
+                null);
+        try {
+            if (!result.moveToFirst()) {
+                return false;
+            }
+            final PackageVersion version = getPackageVersion(packageName);
+            return result.getLong(0) == version.lastUpdateTime &&
+                    result.getInt(1) == version.versionCode;
+        } finally {
+            result.close();
         }
     }
 
@@ -243,9 +492,9 @@ public class WidgetPreviewLoader {
                 if (b == bitmapToRecycle) {
                     mLoadedPreviews.remove(name);
                     if (bitmapToRecycle.isMutable()) {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(new SoftReference<Bitmap>(b));
-                        }
+                        // Keep it resident; it only goes back to the pool once it falls out of
+                        // the memory tier
+                        mPreviewCache.put(name, b);
                     }
                 } else {
                     throw new RuntimeException("Bitmap passed in doesn't match up");
@@ -254,13 +503,61 @@ public class WidgetPreviewLoader {
         }
     }
 
+    /**
+     * Drops the resident previews and the pooled bitmaps, which are otherwise never released.
+     */
+    public void trimMemory() {
+        synchronized (mLoadedPreviews) {
+            mPreviewCache.evictAll();
+        }
+        // Evicting pools what it can, so clear the pool afterwards
+        synchronized (mUnusedBitmaps) {
+            mUnusedBitmaps.clear();
+        }
+    }
+
+    private void addUnusedBitmap(Bitmap b) {
+        if (!b.isMutable() || b.getWidth() != mPreviewBitmapWidth ||
+                b.getHeight() != mPreviewBitmapHeight) {
+            return;
+        }
+        synchronized (mUnusedBitmaps) {
+            if (mUnusedBitmaps.size() < MAX_UNUSED_BITMAPS) {
+                mUnusedBitmaps.add(b);
+            }
+        }
+    }
+
+    public void dumpState() {
+        synchronized (mLoadedPreviews) {
+            final int lookups = mCacheHits + mCacheMisses;
+            Log.d(TAG, "mPreviewCache size=" + mPreviewCache.size() + "/" +
+                    mPreviewCache.maxSize() + " bytes, entries=" + mPreviewCache.snapshot().size());
+            Log.d(TAG, "mPreviewCache hits=" + mCacheHits + " misses=" + mCacheMisses +
+                    " evictions=" + mCacheEvictions + " hitRate=" +
+                    (lookups > 0 ? (100 * mCacheHits / lookups) : 0) + "%");
+            Log.d(TAG, "mLoadedPreviews size=" + mLoadedPreviews.size());
+        }
+        synchronized (mUnusedBitmaps) {
+            Log.d(TAG, "mUnusedBitmaps size=" + mUnusedBitmaps.size());
+        }
+    }
+
     static class CacheDb extends SQLiteOpenHelper {
-        final static int DB_VERSION = 2;
+        final static int DB_VERSION = 4;
         final static String DB_NAME = "widgetpreviews.db";
         final static String TABLE_NAME = "shortcut_and_widget_previews";
         final static String COLUMN_NAME = "name";
         final static String COLUMN_SIZE = "size";
+        final static String COLUMN_PACKAGE = "packageName";
+        final static String COLUMN_LAST_UPDATED = "lastUpdated";
+        final static String COLUMN_VERSION = "version";
+        final static String COLUMN_FORMAT = "format";
         final static String COLUMN_PREVIEW_BITMAP = "preview_bitmap";
+
+        // How preview_bitmap is stored
+        final static int FORMAT_PNG = 0;
+        final static int FORMAT_RAW = 1;
         Context mContext;
 
         public CacheDb(Context context) {
@@ -274,20 +571,32 @@ public class WidgetPreviewLoader {
             database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
                     COLUMN_NAME + " TEXT NOT NULL, " +
                     COLUMN_SIZE + " TEXT NOT NULL, " +
+                    COLUMN_PACKAGE + " TEXT NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_FORMAT + " INTEGER NOT NULL DEFAULT " + FORMAT_PNG + ", " +
                     COLUMN_PREVIEW_BITMAP + " BLOB NOT NULL, " +
                     "PRIMARY KEY (" + COLUMN_NAME + ", " + COLUMN_SIZE + ") " +
                     ");");
+            database.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_package ON " +
+                    TABLE_NAME + " (" + COLUMN_PACKAGE + ");");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             if (oldVersion != newVersion) {
-                // Delete all the records; they'll be repopulated as this is a cache
-                db.execSQL("DELETE FROM " + TABLE_NAME);
+                // Drop the table; it'll be repopulated with the new schema as this is a cache
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+                onCreate(db);
             }
         }
     }
 
+    // Previews are stored as raw pixels, which are copied straight back into the reused bitmap
+    // instead of going through a PNG encode and decode. Larger previews fall back to PNG so a
+    // row always fits in a cursor window.
+    private static final int MAX_RAW_PREVIEW_BYTES = 1024 * 1024;
+
     private static final String WIDGET_PREFIX = "Widget:";
     private static final String SHORTCUT_PREFIX = "Shortcut:";
 
@@ -321,33 +630,56 @@ public class WidgetPreviewLoader {
         }
     }
 
+    private PackageVersion getPackageVersion(String packageName) {
+        synchronized (sPackageVersions) {
+            PackageVersion version = sPackageVersions.get(packageName);
+            if (version == null) {
+                try {
+                    PackageInfo info = mPackageManager.getPackageInfo(packageName, 0);
+                    version = new PackageVersion(info.lastUpdateTime, info.versionCode);
+                } catch (PackageManager.NameNotFoundException e) {
+                    version = new PackageVersion(0, 0);
+                }
+                sPackageVersions.put(packageName, version);
+            }
+            return version;
+        }
+    }
+
     private void writeToDb(Object o, Bitmap preview) {
+        writeToDb(o, preview, mSize);
+    }
+
+    private void writeToDb(Object o, Bitmap preview, String size) {
         String name = getObjectName(o);
+        String packageName = getObjectPackage(o);
+        PackageVersion version = getPackageVersion(packageName);
         SQLiteDatabase db = mDb.getWritableDatabase();
         ContentValues values = new ContentValues();
 
         values.put(CacheDb.COLUMN_NAME, name);
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        preview.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, stream.toByteArray());
-        values.put(CacheDb.COLUMN_SIZE, mSize);
-        db.insert(CacheDb.TABLE_NAME, null, values);
+        encodePreview(preview, values);
+        values.put(CacheDb.COLUMN_SIZE, size);
+        values.put(CacheDb.COLUMN_PACKAGE, packageName);
+        values.put(CacheDb.COLUMN_LAST_UPDATED, version.lastUpdateTime);
+        values.put(CacheDb.COLUMN_VERSION, version.versionCode);
+        db.insertWithOnConflict(CacheDb.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
     }
 
     public static void removeFromDb(final CacheDb cacheDb, final String packageName) {
         synchronized(sInvalidPackages) {
             sInvalidPackages.add(packageName);
         }
+        synchronized (sPackageVersions) {
+            sPackageVersions.remove(packageName);
+        }
         new AsyncTask<Void, Void, Void>() {
             public Void doInBackground(Void ... args) {
                 SQLiteDatabase db = cacheDb.getWritableDatabase();
                 db.delete(CacheDb.TABLE_NAME,
-                        CacheDb.COLUMN_NAME + " LIKE ? OR " +
-                        CacheDb.COLUMN_NAME + " LIKE ?", // SELECT query
-                        new String[] {
-                            WIDGET_PREFIX + packageName + "/%",
-                            SHORTCUT_PREFIX + packageName + "/%"} // args to SELECT query
-                            );
+                        CacheDb.COLUMN_PACKAGE + " = ?", // SELECT query
+                        new String[] { packageName }); // args to SELECT query
                 synchronized(sInvalidPackages) {
                     sInvalidPackages.remove(packageName);
                 }
@@ -356,14 +688,15 @@ public class WidgetPreviewLoader {
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
     }
 
-    private Bitmap readFromDb(String name, Bitmap b) {
+    private Bitmap readFromDb(String name, String packageName, Bitmap b) {
         if (mCachedSelectQuery == null) {
             mCachedSelectQuery = CacheDb.COLUMN_NAME + " = ? AND " +
                     CacheDb.COLUMN_SIZE + " = ?";
         }
         SQLiteDatabase db = mDb.getReadableDatabase();
         Cursor result = db.query(CacheDb.TABLE_NAME,
-                new String[] { CacheDb.COLUMN_PREVIEW_BITMAP }, // cols to return
+                new String[] { CacheDb.COLUMN_PREVIEW_BITMAP, CacheDb.COLUMN_LAST_UPDATED,
+                        CacheDb.COLUMN_VERSION, CacheDb.COLUMN_FORMAT }, // cols to return
                 mCachedSelectQuery, // select query
                 new String[] { name, mSize }, // args to select query
                 null,
@@ -372,19 +705,146 @@ public class WidgetPreviewLoader {
                 null);
         if (result.getCount() > 0) {
             result.moveToFirst();
+            final PackageVersion version = getPackageVersion(packageName);
+            if (result.getLong(1) != version.lastUpdateTime ||
+                    result.getInt(2) != version.versionCode) {
+                // The package changed since this preview was generated, so it may be stale.
+                // Drop it and let the caller generate a new one
+                result.close();
+                mDb.getWritableDatabase().delete(CacheDb.TABLE_NAME, mCachedSelectQuery,
+                        new String[] { name, mSize });
+                return null;
+            }
             byte[] blob = result.getBlob(0);
+            final int format = result.getInt(3);
             result.close();
-            final BitmapFactory.Options opts = mCachedBitmapFactoryOptions.get();
-            opts.inBitmap = b;
-            opts.inSampleSize = 1;
-            Bitmap out = BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
-            return out;
+            return decodePreview(blob, format, b);
         } else {
             result.close();
             return null;
         }
     }
 
+    /**
+     * Decodes the still valid stored previews of the missed items into their slots of previews,
+     * a row at a time as the cursor is read, so only one blob is held at once. Stale rows are
+     * deleted, and the slots of missing or stale items are left null. Returns false if the task
+     * was cancelled before all the rows were read.
+     */
+    private boolean readFromDb(ArrayList<Integer> misses, ArrayList<String> names,
+            ArrayList<Bitmap> previews, AppsCustomizeAsyncTask task) {
+        final int count = names.size();
+        final HashMap<String, Integer> indices = new HashMap<String, Integer>(count);
+        final String[] args = new String[count + 1];
+        final StringBuilder inList = new StringBuilder();
+        args[0] = mSize;
+        for (int i = 0; i < count; i++) {
+            inList.append(i == 0 ? "?" : ",?");
+            args[i + 1] = names.get(i);
+            indices.put(names.get(i), misses.get(i));
+        }
+        final String selection = CacheDb.COLUMN_SIZE + " = ? AND " +
+                CacheDb.COLUMN_NAME + " IN (" + inList + ")";
+
+        boolean completed = true;
+        final ArrayList<String> stale = new ArrayList<String>();
+        SQLiteDatabase db = mDb.getReadableDatabase();
+        Cursor result = db.query(CacheDb.TABLE_NAME,
+                new String[] { CacheDb.COLUMN_NAME, CacheDb.COLUMN_PACKAGE,
+                        CacheDb.COLUMN_LAST_UPDATED, CacheDb.COLUMN_VERSION,
+                        CacheDb.COLUMN_FORMAT, CacheDb.COLUMN_PREVIEW_BITMAP }, // cols to return
+                selection, // select query
+                args, // args to select query
+                null,
+                null,
+                null,
+                null);
+        try {
+            while (result.moveToNext()) {
+                if (task != null) {
+                    if (task.isCancelled()) {
+                        completed = false;
+                        break;
+                    }
+                    task.syncThreadPriority();
+                }
+                final String name = result.getString(0);
+                final Integer index = indices.get(name);
+                if (index == null || previews.get(index) != null) {
+                    continue;
+                }
+                final PackageVersion version = getPackageVersion(result.getString(1));
+                if (result.getLong(2) != version.lastUpdateTime ||
+                        result.getInt(3) != version.versionCode) {
+                    // The package changed since this preview was generated
+                    stale.add(name);
+                    continue;
+                }
+                final Bitmap unusedBitmap = obtainUnusedBitmap();
+                final Bitmap preview = decodePreview(result.getBlob(5), result.getInt(4),
+                        unusedBitmap);
+                if (preview != unusedBitmap) {
+                    // Not decoded into the pooled bitmap, so it can go back
+                    addUnusedBitmap(unusedBitmap);
+                }
+                if (preview == null) {
+                    continue;
+                }
+                synchronized(mLoadedPreviews) {
+                    mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
+                }
+                previews.set(index, preview);
+            }
+        } finally {
+            result.close();
+        }
+
+        for (String name : stale) {
+            mDb.getWritableDatabase().delete(CacheDb.TABLE_NAME,
+                    CacheDb.COLUMN_NAME + " = ? AND " + CacheDb.COLUMN_SIZE + " = ?",
+                    new String[] { name, mSize });
+        }
+        return completed;
+    }
+
+    /**
+     * Puts the stored form of the preview, and its format, into the values of its row.
+     */
+    static void encodePreview(Bitmap preview, ContentValues values) {
+        final int byteCount = preview.getRowBytes() * preview.getHeight();
+        if (byteCount <= MAX_RAW_PREVIEW_BYTES) {
+            ByteBuffer buffer = ByteBuffer.allocate(byteCount);
+            preview.copyPixelsToBuffer(buffer);
+            values.put(CacheDb.COLUMN_PREVIEW_BITMAP, buffer.array());
+            values.put(CacheDb.COLUMN_FORMAT, CacheDb.FORMAT_RAW);
+        } else {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            preview.compress(Bitmap.CompressFormat.PNG, 100, stream);
+            values.put(CacheDb.COLUMN_PREVIEW_BITMAP, stream.toByteArray());
+            values.put(CacheDb.COLUMN_FORMAT, CacheDb.FORMAT_PNG);
+        }
+    }
+
+    private Bitmap decodePreview(byte[] blob, int format, Bitmap b) {
+        return decodePreview(blob, format, b, mCachedBitmapFactoryOptions.get());
+    }
+
+    /**
+     * Decodes a stored preview into the given bitmap, returning null if it can't be reused.
+     */
+    static Bitmap decodePreview(byte[] blob, int format, Bitmap b, BitmapFactory.Options opts) {
+        if (format == CacheDb.FORMAT_RAW) {
+            if (b.isMutable() && b.getRowBytes() * b.getHeight() == blob.length) {
+                b.copyPixelsFromBuffer(ByteBuffer.wrap(blob));
+                return b;
+            }
+            return null;
+        }
+        opts.inBitmap = b;
+        opts.inSampleSize = 1;
+        return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
+    }
+
     public Bitmap generatePreview(Object info, Bitmap preview) {
         if (preview != null &&
                 (preview.getWidth() != mPreviewBitmapWidth ||
@@ -426,8 +886,16 @@ public class WidgetPreviewLoader {
         if (maxPreviewHeight < 0) maxPreviewHeight = Integer.MAX_VALUE;
 
         Drawable drawable = null;
+        int[] intrinsicSize = null;
         if (previewImage != 0) {
-            drawable = mPackageManager.getDrawable(packageName, previewImage, null);
+            // Decode bitmap previews straight at the size they will be drawn at
+            intrinsicSize = new int[2];
+            drawable = decodeSampledPreview(packageName, previewImage, maxPreviewWidth,
+                    intrinsicSize);
+            if (drawable == null) {
+                intrinsicSize = null;
+                drawable = mPackageManager.getDrawable(packageName, previewImage, null);
+            }
             if (drawable == null) {
                 Log.w(TAG, "Can't load widget preview drawable 0x" +
                         Integer.toHexString(previewImage) + " for provider: " + provider);
@@ -438,7 +906,10 @@ public class WidgetPreviewLoader {
         int previewHeight;
         Bitmap defaultPreview = null;
         boolean widgetPreviewExists = (drawable != null);
-        if (widgetPreviewExists) {
+        if (intrinsicSize != null) {
+            previewWidth = intrinsicSize[0];
+            previewHeight = intrinsicSize[1];
+        } else if (widgetPreviewExists) {
             previewWidth = drawable.getIntrinsicWidth();
             previewHeight = drawable.getIntrinsicHeight();
         } else {
@@ -532,6 +1003,69 @@ public class WidgetPreviewLoader {
         return preview;
     }
 
+    /**
+     * Decodes a bitmap preview resource subsampled to no less than maxWidth, without ever
+     * holding it at full size. The size the full drawable would have had is returned in
+     * intrinsicSizeOut. Returns null if the resource isn't a plain bitmap, in which case the
+     * caller should load it as a drawable.
+     */
+    private Drawable decodeSampledPreview(String packageName, int previewImage, int maxWidth,
+            int[] intrinsicSizeOut) {
+        final Resources res;
+        final TypedValue value = new TypedValue();
+        try {
+            res = mPackageManager.getResourcesForApplication(packageName);
+            res.getValue(previewImage, value, true);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        } catch (Resources.NotFoundException e) {
+            return null;
+        }
+        // Xml drawables and nine-patches need the full drawable machinery
+        final String file = value.string != null ? value.string.toString() : "";
+        if (file.endsWith(".xml") || file.endsWith(".9.png") || file.length() == 0) {
+            return null;
+        }
+
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        opts.inScaled = false;
+        BitmapFactory.decodeResource(res, previewImage, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+
+        // Work out the size a density scaled drawable would have had
+        int intrinsicWidth = opts.outWidth;
+        int intrinsicHeight = opts.outHeight;
+        if (value.density != TypedValue.DENSITY_NONE) {
+            final int density = value.density == TypedValue.DENSITY_DEFAULT ?
+                    DisplayMetrics.DENSITY_DEFAULT : value.density;
+            final int targetDensity = res.getDisplayMetrics().densityDpi;
+            intrinsicWidth = (intrinsicWidth * targetDensity + (density >> 1)) / density;
+            intrinsicHeight = (intrinsicHeight * targetDensity + (density >> 1)) / density;
+        }
+        intrinsicSizeOut[0] = intrinsicWidth;
+        intrinsicSizeOut[1] = intrinsicHeight;
+
+        // Subsample by the largest power of two that keeps the bitmap at least as wide as
+        // it will be drawn, the remaining scaling is done when rendering
+        final int targetWidth = (int) ((long) opts.outWidth *
+                Math.min(intrinsicWidth, maxWidth) / intrinsicWidth);
+        int sampleSize = 1;
+        while (opts.outWidth / (sampleSize * 2) >= targetWidth) {
+            sampleSize *= 2;
+        }
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        final Bitmap bitmap = BitmapFactory.decodeResource(res, previewImage, opts);
+        if (bitmap == null) {
+            return null;
+        }
+        return new BitmapDrawable(res, bitmap);
+    }
+
     private Bitmap generateShortcutPreview(
             ResolveInfo info, int maxWidth, int maxHeight, Bitmap preview) {
         Bitmap tempBitmap = mCachedShortcutPreviewBitmap.get();
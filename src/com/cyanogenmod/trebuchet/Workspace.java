@@ -201,6 +201,11 @@ public class Workspace extends PagedView
     private final Camera mCamera = new Camera();
     private final float mTempFloat2[] = new float[2];
 
+    // Scratch state for the drag-over path, which runs for every touch move of a drag
+    private final Rect mTempHotseatRect = new Rect();
+    private final float[] mTempTouchXy = new float[2];
+    private final ReorderAlarmListener mReorderAlarmListener = new ReorderAlarmListener();
+
     int mWallpaperWidth;
     int mWallpaperHeight;
     WallpaperOffsetInterpolator mWallpaperInterpolator;
@@ -3423,7 +3428,9 @@ public class Workspace extends PagedView
         for (int i = 0; i < screenCount; i++) {
             CellLayout cl = (CellLayout) getChildAt(i);
 
-            final float[] touchXy = {originX, originY};
+            final float[] touchXy = mTempTouchXy;
+            touchXy[0] = originX;
+            touchXy[1] = originY;
             // Transform the touch coordinates to the CellLayout's local coordinates
             // If the touch point is within the bounds of the cell layout, we can return immediately
             cl.getMatrix().invert(mTempInverseMatrix);
@@ -3501,7 +3508,7 @@ public class Workspace extends PagedView
         // Skip drag over events while we are dragging over side pages
         if (mInScrollArea || mIsSwitchingState || mState == State.SMALL) return;
 
-        Rect r = new Rect();
+        final Rect r = mTempHotseatRect;
         CellLayout layout = null;
         ItemInfo item = (ItemInfo) d.dragInfo;
 
@@ -3603,9 +3610,9 @@ public class Workspace extends PagedView
 
                 // Otherwise, if we aren't adding to or creating a folder and there's no pending
                 // reorder, then we schedule a reorder
-                ReorderAlarmListener listener = new ReorderAlarmListener(mDragViewVisualCenter,
-                        minSpanX, minSpanY, item.spanX, item.spanY, d.dragView, child);
-                mReorderAlarm.setOnAlarmListener(listener);
+                mReorderAlarmListener.set(minSpanX, minSpanY, item.spanX, item.spanY,
+                        d.dragView, child);
+                mReorderAlarm.setOnAlarmListener(mReorderAlarmListener);
                 mReorderAlarm.setAlarm(REORDER_TIMEOUT);
             }
 
@@ -3676,15 +3683,15 @@ public class Workspace extends PagedView
         }
     }
 
-    class ReorderAlarmListener implements OnAlarmListener {
-        float[] dragViewCenter;
+    // Reused for every reorder of a drag, only one reorder is ever pending
+    class ReorderAlarmListener implements OnAlarmListener, CellLayout.ReorderListener {
         int minSpanX, minSpanY, spanX, spanY;
         DragView dragView;
         View child;
+        CellLayout layout;
 
-        public ReorderAlarmListener(float[] dragViewCenter, int minSpanX, int minSpanY, int spanX,
-                int spanY, DragView dragView, View child) {
-            this.dragViewCenter = dragViewCenter;
+        void set(int minSpanX, int minSpanY, int spanX, int spanY, DragView dragView,
+                View child) {
             this.minSpanX = minSpanX;
             this.minSpanY = minSpanY;
             this.spanX = spanX;
@@ -3694,24 +3701,32 @@ public class Workspace extends PagedView
         }
 
         public void onAlarm(Alarm alarm) {
-            int[] resultSpan = new int[2];
             mTargetCell = findNearestArea((int) mDragViewVisualCenter[0],
                     (int) mDragViewVisualCenter[1], spanX, spanY, mDragTargetLayout, mTargetCell);
             mLastReorderX = mTargetCell[0];
             mLastReorderY = mTargetCell[1];
 
-            mTargetCell = mDragTargetLayout.createArea((int) mDragViewVisualCenter[0],
-                (int) mDragViewVisualCenter[1], minSpanX, minSpanY, spanX, spanY,
-                child, mTargetCell, resultSpan, CellLayout.MODE_DRAG_OVER);
+            // The reordering is solved off the UI thread, the layout cancels it if the drag
+            // moves on before it is done
+            layout = mDragTargetLayout;
+            layout.createAreaAsync((int) mDragViewVisualCenter[0],
+                    (int) mDragViewVisualCenter[1], minSpanX, minSpanY, spanX, spanY, child,
+                    this);
+        }
+
+        public void onReorderSolved(int[] result, int[] resultSpan) {
+            if (layout != mDragTargetLayout) return;
+            mTargetCell[0] = result[0];
+            mTargetCell[1] = result[1];
 
             if (mTargetCell[0] < 0 || mTargetCell[1] < 0) {
-                mDragTargetLayout.revertTempState();
+                layout.revertTempState();
             } else {
                 setDragMode(DRAG_MODE_REORDER);
             }
 
             boolean resize = resultSpan[0] != spanX || resultSpan[1] != spanY;
-            mDragTargetLayout.visualizeDropLocation(child, mDragOutline,
+            layout.visualizeDropLocation(child, mDragOutline,
                 (int) mDragViewVisualCenter[0], (int) mDragViewVisualCenter[1],
                 mTargetCell[0], mTargetCell[1], resultSpan[0], resultSpan[1], resize,
                 dragView.getDragVisualizeOffset(), dragView.getDragRegion());
@@ -123,6 +123,10 @@ public class Preferences extends PreferenceActivity
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        // The launcher switches icon packs on its own, without restarting
+        if (key.equals("ui_general_iconpack")) {
+            return;
+        }
         SharedPreferences.Editor editor = mPreferences.edit();
         editor.putBoolean(PreferencesProvider.PREFERENCES_CHANGED, true);
         editor.commit();
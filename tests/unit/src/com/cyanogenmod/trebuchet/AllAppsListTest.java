@@ -0,0 +1,152 @@
+package com.cyanogenmod.trebuchet;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.test.InstrumentationTestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that the component and package indexes of {@link AllAppsList} follow its data, and
+ * times loading lists of growing size against the linear scan the indexes replaced.
+ */
+public class AllAppsListTest extends InstrumentationTestCase {
+    private static final int ACTIVITIES_PER_PACKAGE = 3;
+    private static final int[] BENCHMARK_SIZES = { 100, 500, 1000, 2000, 5000 };
+
+    private IconCache mIconCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIconCache = new IconCache((LauncherApplication) getInstrumentation().getTargetContext()
+                .getApplicationContext());
+    }
+
+    private static ApplicationInfo makeApp(int i) {
+        ApplicationInfo app = new ApplicationInfo();
+        app.componentName = new ComponentName("com.example.app" + i / ACTIVITIES_PER_PACKAGE,
+                "com.example.Activity" + i);
+        app.setActivity(app.componentName, Intent.FLAG_ACTIVITY_NEW_TASK);
+        app.title = "App " + i;
+        return app;
+    }
+
+    private static ArrayList<ApplicationInfo> makeApps(int count) {
+        final ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(count);
+        for (int i = 0; i < count; i++) {
+            apps.add(makeApp(i));
+        }
+        return apps;
+    }
+
+    public void testAddIgnoresDuplicates() {
+        AllAppsList list = new AllAppsList(mIconCache);
+        list.add(makeApp(0));
+        list.add(makeApp(1));
+        list.add(makeApp(0));
+        assertEquals(2, list.size());
+        assertEquals(2, list.added.size());
+    }
+
+    public void testRemovePackageOnlyRemovesItsApps() {
+        AllAppsList list = new AllAppsList(mIconCache);
+        final ArrayList<ApplicationInfo> apps = makeApps(3 * ACTIVITIES_PER_PACKAGE);
+        for (ApplicationInfo app : apps) {
+            list.add(app);
+        }
+        list.removePackage("com.example.app1");
+        assertEquals(2 * ACTIVITIES_PER_PACKAGE, list.size());
+        assertEquals(ACTIVITIES_PER_PACKAGE, list.removed.size());
+        for (ApplicationInfo app : list.removed) {
+            assertEquals("com.example.app1", app.componentName.getPackageName());
+        }
+        for (int i = 0; i < list.size(); i++) {
+            assertFalse(list.get(i).componentName.getPackageName().equals("com.example.app1"));
+        }
+
+        // Removed apps can be added back
+        list.add(makeApp(ACTIVITIES_PER_PACKAGE));
+        assertEquals(2 * ACTIVITIES_PER_PACKAGE + 1, list.size());
+    }
+
+    public void testReplaceKeepsIndexes() {
+        AllAppsList list = new AllAppsList(mIconCache);
+        for (ApplicationInfo app : makeApps(2 * ACTIVITIES_PER_PACKAGE)) {
+            list.add(app);
+        }
+        final ApplicationInfo copy = new ApplicationInfo(list.get(1));
+        list.replace(1, copy);
+        assertSame(copy, list.get(1));
+
+        // The component is still known, through the copy
+        list.add(makeApp(1));
+        assertEquals(2 * ACTIVITIES_PER_PACKAGE, list.size());
+
+        // and the package index removes the copy rather than the replaced app
+        list.removePackage("com.example.app0");
+        assertEquals(ACTIVITIES_PER_PACKAGE, list.size());
+        assertTrue(list.removed.contains(copy));
+        assertFalse(list.data.contains(copy));
+    }
+
+    /**
+     * Times adding lists of growing size, as loadAllAppsByBatch does, against adding them with
+     * the linear duplicate check the indexes replaced. Prints the time per add rather than
+     * asserting on it, as it depends on the device; it should stay flat for the indexed list
+     * and grow with the size of the list for the scan.
+     */
+    public void testAddBenchmark() {
+        // Warm up both before timing them
+        addIndexed(makeApps(BENCHMARK_SIZES[0]));
+        addScanning(makeApps(BENCHMARK_SIZES[0]));
+
+        for (int size : BENCHMARK_SIZES) {
+            final ArrayList<ApplicationInfo> apps = makeApps(size);
+            long t = System.nanoTime();
+            final int indexed = addIndexed(apps);
+            final long indexedTime = System.nanoTime() - t;
+
+            t = System.nanoTime();
+            final int scanned = addScanning(apps);
+            final long scanTime = System.nanoTime() - t;
+
+            assertEquals(size, indexed);
+            assertEquals(size, scanned);
+            System.out.println("add " + size + " activities: indexed " + (indexedTime / size)
+                    + "ns, scan " + (scanTime / size) + "ns per add");
+        }
+    }
+
+    private int addIndexed(ArrayList<ApplicationInfo> apps) {
+        AllAppsList list = new AllAppsList(mIconCache);
+        for (ApplicationInfo app : apps) {
+            list.add(app);
+        }
+        return list.size();
+    }
+
+    /**
+     * Adds the apps the way AllAppsList.add() did before it had indexes.
+     */
+    private static int addScanning(ArrayList<ApplicationInfo> apps) {
+        final ArrayList<ApplicationInfo> data = new ArrayList<ApplicationInfo>();
+        for (ApplicationInfo app : apps) {
+            if (!findActivity(data, app.componentName)) {
+                data.add(app);
+            }
+        }
+        return data.size();
+    }
+
+    private static boolean findActivity(ArrayList<ApplicationInfo> apps,
+            ComponentName component) {
+        final int count = apps.size();
+        for (int i = 0; i < count; i++) {
+            if (apps.get(i).componentName.equals(component)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,144 @@
+package com.cyanogenmod.trebuchet;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+import junit.framework.TestCase;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks that sorting apps by their cached title keys orders them as collating their titles
+ * does, that the keys follow title and locale changes, and times sorting 1,000 apps both ways.
+ */
+public class AppNameComparatorTest extends TestCase {
+    private static final long SEED = 0x5eedL;
+    private static final String[] WORDS = { "Camera", "camera", "Café", "Cafe", "Éclair",
+            "eclair", "Zebra", "zoo", "Ärger", "Apfel", "Mail", "Maps", "Market", "Music",
+            "Phone", "Photos", "1Weather", "2048", "Ångström", "Œuvre" };
+
+    private static final int BENCHMARK_APPS = 1000;
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    private final Random mRandom = new Random(SEED);
+
+    private ApplicationInfo makeApp(int i, String title) {
+        ApplicationInfo app = new ApplicationInfo();
+        app.componentName = new ComponentName("com.example.app" + i, "com.example.Activity");
+        app.setActivity(app.componentName, Intent.FLAG_ACTIVITY_NEW_TASK);
+        app.title = title;
+        return app;
+    }
+
+    private ArrayList<ApplicationInfo> makeApps(int count) {
+        final ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(count);
+        for (int i = 0; i < count; i++) {
+            // Titles of one or two words, so that many share a prefix and some are equal
+            String title = WORDS[mRandom.nextInt(WORDS.length)];
+            if (mRandom.nextBoolean()) {
+                title += " " + WORDS[mRandom.nextInt(WORDS.length)];
+            }
+            apps.add(makeApp(i, title));
+        }
+        return apps;
+    }
+
+    /**
+     * The comparator getAppNameComparator() used to return, which collates the titles on every
+     * comparison.
+     */
+    private static Comparator<ApplicationInfo> makeCollatingComparator() {
+        final Collator collator = Collator.getInstance();
+        return new Comparator<ApplicationInfo>() {
+            public final int compare(ApplicationInfo a, ApplicationInfo b) {
+                int result = collator.compare(a.title.toString(), b.title.toString());
+                if (result == 0) {
+                    result = a.componentName.compareTo(b.componentName);
+                }
+                return result;
+            }
+        };
+    }
+
+    public void testOrderMatchesCollator() {
+        final ArrayList<ApplicationInfo> apps = makeApps(200);
+        final ArrayList<ApplicationInfo> expected = new ArrayList<ApplicationInfo>(apps);
+        Collections.sort(expected, makeCollatingComparator());
+        Collections.sort(apps, LauncherModel.getAppNameComparator());
+        for (int i = 0; i < apps.size(); i++) {
+            assertSame("position " + i, expected.get(i), apps.get(i));
+        }
+    }
+
+    public void testKeyFollowsTitle() {
+        final ApplicationInfo a = makeApp(0, "Alpha");
+        final ApplicationInfo b = makeApp(1, "Beta");
+        final Comparator<ApplicationInfo> comparator = LauncherModel.getAppNameComparator();
+        assertTrue(comparator.compare(a, b) < 0);
+        a.title = "Gamma";
+        assertTrue(comparator.compare(a, b) > 0);
+    }
+
+    public void testKeyFollowsLocale() {
+        final Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.US);
+            final ApplicationInfo app = makeApp(0, "Ärger");
+            final Object key = app.getTitleKey();
+            assertSame(key, app.getTitleKey());
+
+            // Swedish sorts Ä after Z, unlike English
+            Locale.setDefault(new Locale("sv", "SE"));
+            assertNotSame(key, app.getTitleKey());
+            assertTrue(LauncherModel.getAppNameComparator().compare(app,
+                    makeApp(1, "Zebra")) > 0);
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    /**
+     * Times sorting 1,000 apps by collating their titles, and by their cached keys, the first
+     * time when the keys are computed and then once they are cached. Prints the times rather
+     * than asserting on them, as they depend on the device.
+     */
+    public void testSortBenchmark() {
+        final ArrayList<ApplicationInfo> apps = makeApps(BENCHMARK_APPS);
+        final Comparator<ApplicationInfo> collating = makeCollatingComparator();
+        final Comparator<ApplicationInfo> keyed = LauncherModel.getAppNameComparator();
+
+        // The first keyed sort computes the keys
+        ArrayList<ApplicationInfo> sorted = new ArrayList<ApplicationInfo>(apps);
+        long t = System.nanoTime();
+        Collections.sort(sorted, keyed);
+        final long firstKeyedTime = System.nanoTime() - t;
+
+        // Warm up the collating sort before timing it
+        Collections.sort(new ArrayList<ApplicationInfo>(apps), collating);
+
+        long collatingTime = 0;
+        long keyedTime = 0;
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            Collections.shuffle(apps, mRandom);
+            sorted = new ArrayList<ApplicationInfo>(apps);
+            t = System.nanoTime();
+            Collections.sort(sorted, collating);
+            collatingTime += System.nanoTime() - t;
+
+            sorted = new ArrayList<ApplicationInfo>(apps);
+            t = System.nanoTime();
+            Collections.sort(sorted, keyed);
+            keyedTime += System.nanoTime() - t;
+        }
+
+        System.out.println("sort " + BENCHMARK_APPS + " apps: collating "
+                + (collatingTime / BENCHMARK_ITERATIONS / 1000) + "us, keys "
+                + (keyedTime / BENCHMARK_ITERATIONS / 1000) + "us, computing the keys "
+                + (firstKeyedTime / 1000) + "us");
+    }
+}
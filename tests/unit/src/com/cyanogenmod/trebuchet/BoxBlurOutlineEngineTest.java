@@ -0,0 +1,230 @@
+package com.cyanogenmod.trebuchet;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks the box blurs of {@link BoxBlurOutlineEngine} against direct sums, and their three
+ * passes against a reference gaussian blur of the same sigma. Only the static blur helpers are
+ * used, so no bitmap is needed.
+ */
+public class BoxBlurOutlineEngineTest extends TestCase {
+    private static final long SEED = 0x5eedL;
+    // From the smallest outline blur, a radius of one pixel, up to the largest glows
+    private static final float[] SIGMAS = { 1.08f, 1.5f, 2f, 2.5f, 3.5f, 5f, 8f, 12f };
+
+    // The largest difference allowed between the box blurs and the gaussian, in alpha levels.
+    // Box widths are odd, so sigmas close to a pixel can only be matched coarsely.
+    private static final int GAUSSIAN_TOLERANCE = 8;
+    private static final int SMALL_SIGMA_GAUSSIAN_TOLERANCE = 16;
+
+    private static final int BENCHMARK_SIZE = 192;
+    private static final float BENCHMARK_SIGMA = 6f;
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    private final Random mRandom = new Random(SEED);
+
+    /**
+     * The variance of the box blurs adds up, and should stay within a single step of the box
+     * widths of the variance of the gaussian.
+     */
+    public void testComputeBoxRadiiMatchesVariance() {
+        final int[] radii = new int[3];
+        for (float sigma = 0.5f; sigma <= 20f; sigma += 0.25f) {
+            BoxBlurOutlineEngine.computeBoxRadii(sigma, radii);
+            double variance = 0;
+            int min = Integer.MAX_VALUE;
+            for (int radius : radii) {
+                assertTrue(radius >= 0);
+                final int width = 2 * radius + 1;
+                variance += (width * width - 1) / 12.0;
+                min = Math.min(min, radius);
+            }
+            // Moving one pass to the next odd width changes the variance by this much
+            final double step = ((2 * min + 3) * (2 * min + 3) - (2 * min + 1) * (2 * min + 1))
+                    / 12.0;
+            assertTrue("sigma " + sigma + ": variance " + variance,
+                    Math.abs(variance - sigma * sigma) <= step);
+        }
+    }
+
+    public void testBoxBlurHorizontalMatchesDirectSum() {
+        for (int n = 0; n < 50; n++) {
+            final int width = 1 + mRandom.nextInt(40);
+            final int height = 1 + mRandom.nextInt(40);
+            final int radius = mRandom.nextInt(12);
+            final int[] src = randomPlane(width, height);
+            final int[] dst = new int[width * height];
+            BoxBlurOutlineEngine.boxBlurHorizontal(src, dst, width, height, radius);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int sum = 0;
+                    for (int i = x - radius; i <= x + radius; i++) {
+                        if (i >= 0 && i < width) {
+                            sum += src[y * width + i];
+                        }
+                    }
+                    assertEquals(x + ", " + y + " radius " + radius,
+                            (sum + radius) / (2 * radius + 1), dst[y * width + x]);
+                }
+            }
+        }
+    }
+
+    public void testBoxBlurVerticalMatchesDirectSum() {
+        for (int n = 0; n < 50; n++) {
+            final int width = 1 + mRandom.nextInt(40);
+            final int height = 1 + mRandom.nextInt(40);
+            final int radius = mRandom.nextInt(12);
+            final int[] src = randomPlane(width, height);
+            final int[] dst = new int[width * height];
+            BoxBlurOutlineEngine.boxBlurVertical(src, dst, width, height, radius);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int sum = 0;
+                    for (int i = y - radius; i <= y + radius; i++) {
+                        if (i >= 0 && i < height) {
+                            sum += src[i * width + x];
+                        }
+                    }
+                    assertEquals(x + ", " + y + " radius " + radius,
+                            (sum + radius) / (2 * radius + 1), dst[y * width + x]);
+                }
+            }
+        }
+    }
+
+    public void testThreePassesApproximateGaussian() {
+        final int width = 96;
+        final int height = 80;
+        final int[] src = shapePlane(width, height);
+        final int[] scratch = new int[width * height];
+        final int[] dst = new int[width * height];
+        final int[] radii = new int[3];
+        for (float sigma : SIGMAS) {
+            boxBlur(src, scratch, dst, width, height, sigma, radii);
+            final int[] expected = gaussianBlur(src, width, height, sigma);
+            int maxError = 0;
+            for (int i = 0; i < expected.length; i++) {
+                maxError = Math.max(maxError, Math.abs(expected[i] - dst[i]));
+            }
+            assertTrue("sigma " + sigma + ": max error " + maxError, maxError
+                    <= (sigma < 1.5f ? SMALL_SIGMA_GAUSSIAN_TOLERANCE : GAUSSIAN_TOLERANCE));
+        }
+    }
+
+    /**
+     * Times the three box blurs against the direct gaussian convolution they replace. Prints the
+     * times rather than asserting on them, as they depend on the device.
+     */
+    public void testBlurBenchmark() {
+        final int size = BENCHMARK_SIZE;
+        final int[] src = shapePlane(size, size);
+        final int[] scratch = new int[size * size];
+        final int[] dst = new int[size * size];
+        final int[] radii = new int[3];
+        // A pixel on the edge of the shape, summed so the blurs can't be optimised away
+        final int edge = size * size / 4 + size / 4;
+
+        // Warm up both blurs before timing them
+        boxBlur(src, scratch, dst, size, size, BENCHMARK_SIGMA, radii);
+        int checksum = gaussianBlur(src, size, size, BENCHMARK_SIGMA)[edge];
+
+        long t = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            checksum += gaussianBlur(src, size, size, BENCHMARK_SIGMA)[edge];
+        }
+        final long gaussianTime = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            boxBlur(src, scratch, dst, size, size, BENCHMARK_SIGMA, radii);
+            checksum += dst[edge];
+        }
+        final long boxTime = System.nanoTime() - t;
+
+        System.out.println("blur " + size + "x" + size + " sigma " + BENCHMARK_SIGMA
+                + ": gaussian " + (gaussianTime / BENCHMARK_ITERATIONS / 1000) + "us, box "
+                + (boxTime / BENCHMARK_ITERATIONS / 1000) + "us per blur (" + checksum + ")");
+    }
+
+    private int[] randomPlane(int width, int height) {
+        final int[] plane = new int[width * height];
+        for (int i = 0; i < plane.length; i++) {
+            plane[i] = mRandom.nextInt(256);
+        }
+        return plane;
+    }
+
+    /**
+     * An opaque rectangle with a hole, inset from the edges, like the alpha of an icon.
+     */
+    private static int[] shapePlane(int width, int height) {
+        final int[] plane = new int[width * height];
+        for (int y = height / 4; y < height * 3 / 4; y++) {
+            for (int x = width / 4; x < width * 3 / 4; x++) {
+                final boolean hole = x > width * 3 / 8 && x < width * 5 / 8
+                        && y > height * 3 / 8 && y < height * 5 / 8;
+                plane[y * width + x] = hole ? 0 : 255;
+            }
+        }
+        return plane;
+    }
+
+    /**
+     * The blur as BoxBlurOutlineEngine.blur() runs it, for a given sigma.
+     */
+    private static void boxBlur(int[] src, int[] scratch, int[] dst, int width, int height,
+            float sigma, int[] radii) {
+        BoxBlurOutlineEngine.computeBoxRadii(sigma, radii);
+        int[] in = src;
+        for (int pass = 0; pass < radii.length; pass++) {
+            BoxBlurOutlineEngine.boxBlurHorizontal(in, scratch, width, height, radii[pass]);
+            BoxBlurOutlineEngine.boxBlurVertical(scratch, dst, width, height, radii[pass]);
+            in = dst;
+        }
+    }
+
+    /**
+     * A separable gaussian blur, with everything outside of the plane transparent.
+     */
+    private static int[] gaussianBlur(int[] src, int width, int height, float sigma) {
+        final int radius = (int) Math.ceil(3 * sigma);
+        final double[] kernel = new double[2 * radius + 1];
+        double total = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = Math.exp(-i * i / (2.0 * sigma * sigma));
+            total += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= total;
+        }
+
+        final double[] rows = new double[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int i = -radius; i <= radius; i++) {
+                    if (x + i >= 0 && x + i < width) {
+                        sum += kernel[i + radius] * src[y * width + x + i];
+                    }
+                }
+                rows[y * width + x] = sum;
+            }
+        }
+        final int[] dst = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int i = -radius; i <= radius; i++) {
+                    if (y + i >= 0 && y + i < height) {
+                        sum += kernel[i + radius] * rows[(y + i) * width + x];
+                    }
+                }
+                dst[y * width + x] = (int) Math.round(sum);
+            }
+        }
+        return dst;
+    }
+}
@@ -0,0 +1,163 @@
+package com.cyanogenmod.trebuchet;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the favorites lookups of the model use the indexes LauncherProvider creates, and
+ * times them over a 5,000 row favorites table with and without the indexes.
+ */
+public class FavoritesIndexTest extends TestCase {
+    private static final int ROWS = 5000;
+    private static final int FOLDERS = 200;
+    private static final int SCREENS = 5;
+    private static final int ITERATIONS = 200;
+
+    // The lookups of shortcutExists(), countAllItemsOfType(), deleteFolderContentsFromDatabase()
+    // and of widgets by id
+    private static final String[] QUERIES = {
+        "SELECT intent FROM favorites WHERE intent=?",
+        "SELECT * FROM favorites WHERE itemType=? and container=?",
+        "SELECT _id FROM favorites WHERE container=?",
+        "SELECT * FROM favorites WHERE container=? and screen=?",
+        "SELECT _id FROM favorites WHERE appWidgetId=?",
+    };
+    private static final String[][] ARGS = {
+        { intentFor(ROWS / 2) },
+        { "0", "-100" },
+        { String.valueOf(FOLDERS / 2) },
+        { "-100", "2" },
+        { String.valueOf(ROWS - 10) },
+    };
+    private static final String[] INDEXES = {
+        "favorites_intent",
+        "favorites_container_screen",
+        "favorites_container_screen",
+        "favorites_container_screen",
+        "favorites_appWidgetId",
+    };
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE favorites (" +
+                "_id INTEGER PRIMARY KEY," +
+                "title TEXT," +
+                "intent TEXT," +
+                "container INTEGER," +
+                "screen INTEGER," +
+                "cellX INTEGER," +
+                "cellY INTEGER," +
+                "spanX INTEGER," +
+                "spanY INTEGER," +
+                "itemType INTEGER," +
+                "appWidgetId INTEGER NOT NULL DEFAULT -1" +
+                ");");
+        mDb.beginTransaction();
+        try {
+            final ContentValues values = new ContentValues();
+            for (int i = 0; i < ROWS; i++) {
+                values.clear();
+                values.put("_id", i);
+                values.put("title", "Item " + i);
+                // Every tenth item is a widget on the desktop, the rest are shortcuts spread
+                // over the desktop and the folders
+                final boolean widget = i % 10 == 0;
+                values.put("intent", widget ? null : intentFor(i));
+                values.put("container", widget || i % 2 == 0 ? -100 : i % FOLDERS);
+                values.put("screen", i % SCREENS);
+                values.put("cellX", i % 4);
+                values.put("cellY", (i / 4) % 4);
+                values.put("spanX", 1);
+                values.put("spanY", 1);
+                values.put("itemType", widget ? 4 : 0);
+                values.put("appWidgetId", widget ? i : -1);
+                mDb.insert("favorites", null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private static String intentFor(int i) {
+        return "#Intent;action=android.intent.action.MAIN;"
+                + "component=com.example.app" + i + "/.Main;end";
+    }
+
+    private String getQueryPlan(String sql, String[] args) {
+        final StringBuilder plan = new StringBuilder();
+        final Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            final int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.append(c.getString(detail)).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return plan.toString();
+    }
+
+    public void testLookupsUseIndexes() {
+        LauncherProvider.createFavoritesIndexes(mDb);
+        for (int i = 0; i < QUERIES.length; i++) {
+            final String plan = getQueryPlan(QUERIES[i], ARGS[i]);
+            assertTrue(QUERIES[i] + ": " + plan, plan.contains(INDEXES[i]));
+        }
+    }
+
+    public void testCreatingIndexesTwiceIsHarmless() {
+        LauncherProvider.createFavoritesIndexes(mDb);
+        LauncherProvider.createFavoritesIndexes(mDb);
+    }
+
+    /**
+     * Times each lookup over the table before and after creating the indexes. Prints the times
+     * rather than asserting on them, as they depend on the device.
+     */
+    public void testLookupBenchmark() {
+        final long[] scanTimes = timeQueries();
+        LauncherProvider.createFavoritesIndexes(mDb);
+        final long[] indexedTimes = timeQueries();
+        for (int i = 0; i < QUERIES.length; i++) {
+            System.out.println(QUERIES[i] + " over " + ROWS + " rows: scan " + scanTimes[i]
+                    + "us, indexed " + indexedTimes[i] + "us per query");
+        }
+    }
+
+    private long[] timeQueries() {
+        final long[] times = new long[QUERIES.length];
+        for (int i = 0; i < QUERIES.length; i++) {
+            // Warm up the query before timing it
+            runQuery(QUERIES[i], ARGS[i]);
+            final long t = System.nanoTime();
+            for (int n = 0; n < ITERATIONS; n++) {
+                runQuery(QUERIES[i], ARGS[i]);
+            }
+            times[i] = (System.nanoTime() - t) / ITERATIONS / 1000;
+        }
+        return times;
+    }
+
+    private int runQuery(String sql, String[] args) {
+        final Cursor c = mDb.rawQuery(sql, args);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.cyanogenmod.trebuchet;
+
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.test.InstrumentationTestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Checks that updating a package only invalidates the icons of that package, by loading the
+ * installed apps, updating packages one at a time and reloading all the apps after each, as
+ * LauncherModel does. Compares the hit rate with flushing the whole cache on every update.
+ */
+public class IconCacheTest extends InstrumentationTestCase {
+    private static final int UPDATES = 5;
+    private static final float MIN_HIT_RATE = 0.95f;
+
+    private LauncherApplication mApp;
+    private PackageManager mPackageManager;
+    private List<ResolveInfo> mApps;
+    // Packages with a single launcher activity, to be updated
+    private final ArrayList<String> mPackages = new ArrayList<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mApp = (LauncherApplication) getInstrumentation().getTargetContext()
+                .getApplicationContext();
+        mPackageManager = mApp.getPackageManager();
+
+        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        mApps = mPackageManager.queryIntentActivities(mainIntent, 0);
+
+        final HashMap<String, Integer> activities = new HashMap<String, Integer>();
+        for (ResolveInfo info : mApps) {
+            final String packageName = info.activityInfo.applicationInfo.packageName;
+            final Integer count = activities.get(packageName);
+            activities.put(packageName, count == null ? 1 : count + 1);
+        }
+        for (String packageName : activities.keySet()) {
+            if (activities.get(packageName) == 1 && mPackages.size() < UPDATES) {
+                mPackages.add(packageName);
+            }
+        }
+    }
+
+    private void loadAllApps(IconCache iconCache) {
+        for (ResolveInfo info : mApps) {
+            new ApplicationInfo(mPackageManager, info, iconCache, null);
+        }
+    }
+
+    public void testPackageUpdateKeepsOtherIcons() {
+        assertTrue("not enough apps installed", mApps.size() * (1 - MIN_HIT_RATE) > 1);
+        final IconCache iconCache = new IconCache(mApp);
+        loadAllApps(iconCache);
+        iconCache.resetStats();
+
+        for (String packageName : mPackages) {
+            iconCache.removePackage(packageName);
+            loadAllApps(iconCache);
+        }
+
+        final int[] stats = iconCache.getStats();
+        final float hitRate = iconCache.getHitRate();
+        System.out.println("per package: " + mApps.size() + " apps, " + mPackages.size()
+                + " updates, memoryHits=" + stats[0] + " diskHits=" + stats[1] + " misses="
+                + stats[2] + " evictions=" + stats[3] + " hitRate=" + hitRate);
+        // Only the activity of each updated package is looked up again
+        assertEquals(mPackages.size(), stats[2]);
+        assertEquals(mPackages.size(), stats[3]);
+        assertTrue("hit rate " + hitRate, hitRate > MIN_HIT_RATE);
+    }
+
+    /**
+     * The behaviour per package invalidation replaced, for comparison. The icons come back from
+     * the disk cache, but none are served from memory.
+     */
+    public void testFlushDropsAllIcons() {
+        final IconCache iconCache = new IconCache(mApp);
+        loadAllApps(iconCache);
+        iconCache.commitPendingWrites();
+        iconCache.resetStats();
+
+        for (int i = 0; i < mPackages.size(); i++) {
+            iconCache.flush();
+            loadAllApps(iconCache);
+        }
+
+        final int[] stats = iconCache.getStats();
+        System.out.println("flush: " + mApps.size() + " apps, " + mPackages.size()
+                + " updates, memoryHits=" + stats[0] + " diskHits=" + stats[1] + " misses="
+                + stats[2] + " evictions=" + stats[3]);
+        assertEquals(0, stats[0]);
+    }
+}
@@ -0,0 +1,198 @@
+package com.cyanogenmod.trebuchet;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Checks {@link IconPackIndex} against the mappings parsed from a synthetic 20,000 entry
+ * appfilter, through a write and read back, and times loading the index against parsing the
+ * appfilter. The drawables are ones of the framework, so that they resolve.
+ */
+public class IconPackIndexTest extends InstrumentationTestCase {
+    private static final String PACK = "com.cyanogenmod.trebuchet.tests.iconpack";
+    private static final int ENTRIES = 20000;
+    private static final int ACTIVITIES_PER_PACKAGE = 4;
+    private static final String[] DRAWABLES = { "ic_menu_add", "ic_menu_delete",
+            "ic_menu_edit", "ic_menu_search", "ic_menu_share", "sym_def_app_icon",
+            "ic_dialog_alert", "ic_dialog_info", "star_on", "star_off" };
+
+    private Context mContext;
+    private Resources mResources;
+    private PackageInfo mPack;
+    private String mAppfilter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mResources = Resources.getSystem();
+        mPack = new PackageInfo();
+        mPack.packageName = PACK;
+        mPack.versionCode = 1;
+        mPack.lastUpdateTime = 1;
+        mAppfilter = makeAppfilter();
+        getIndexFile().delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getIndexFile().delete();
+        super.tearDown();
+    }
+
+    private File getIndexFile() {
+        return new File(new File(mContext.getCacheDir(), "iconpacks"), PACK);
+    }
+
+    private static String getPackageName(int i) {
+        // Mixed case, with capital I's, as component names often are
+        return "com.Example.Inbox" + i / ACTIVITIES_PER_PACKAGE;
+    }
+
+    private static String getClassName(int i) {
+        return getPackageName(i) + ".MainActivity" + i % ACTIVITIES_PER_PACKAGE;
+    }
+
+    private static String makeAppfilter() {
+        final StringBuilder xml = new StringBuilder("<resources>\n");
+        for (int i = 0; i < ENTRIES; i++) {
+            final String component = i % ACTIVITIES_PER_PACKAGE == ACTIVITIES_PER_PACKAGE - 1
+                    ? getPackageName(i) : getPackageName(i) + "/" + getClassName(i);
+            xml.append("<item component=\"ComponentInfo{").append(component)
+                    .append("}\" drawable=\"").append(DRAWABLES[i % DRAWABLES.length])
+                    .append("\" />\n");
+        }
+        return xml.append("</resources>\n").toString();
+    }
+
+    private Map<ComponentName, String> parse() throws Exception {
+        final XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new StringReader(mAppfilter));
+        final Map<ComponentName, String> mappings = new HashMap<ComponentName, String>();
+        IconPackHelper.loadResourcesFromXmlParser(parser, mappings);
+        return mappings;
+    }
+
+    private IconPackIndex compile() throws Exception {
+        return IconPackIndex.compile(parse(), mResources, "android");
+    }
+
+    private int getDrawableId(int i) {
+        return mResources.getIdentifier(DRAWABLES[i % DRAWABLES.length], "drawable", "android");
+    }
+
+    private void assertLookups(IconPackIndex index) {
+        assertEquals(ENTRIES, index.size());
+        for (int i = 0; i < ENTRIES; i++) {
+            final boolean packageEntry = i % ACTIVITIES_PER_PACKAGE == ACTIVITIES_PER_PACKAGE - 1;
+            final String className = packageEntry ? "" : getClassName(i);
+            assertEquals(getPackageName(i) + "/" + className, getDrawableId(i),
+                    index.getResourceId(getPackageName(i), className));
+        }
+        assertEquals(0, index.getResourceId("com.example.missing", "com.example.missing.Main"));
+    }
+
+    public void testCompiledLookupsMatchAppfilter() throws Exception {
+        assertLookups(compile());
+    }
+
+    /**
+     * In Turkish a capital I lower cases to a dotless i, which must not break the lookups.
+     */
+    public void testLookupsInTurkishLocale() throws Exception {
+        final Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertLookups(compile());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public void testWriteAndRead() throws Exception {
+        compile().write(mContext, mPack);
+        final IconPackIndex index = IconPackIndex.read(mContext, mPack);
+        assertNotNull(index);
+        assertLookups(index);
+    }
+
+    public void testReadRejectsOtherVersion() throws Exception {
+        compile().write(mContext, mPack);
+        final PackageInfo updated = new PackageInfo();
+        updated.packageName = PACK;
+        updated.versionCode = mPack.versionCode + 1;
+        updated.lastUpdateTime = mPack.lastUpdateTime;
+        assertNull(IconPackIndex.read(mContext, updated));
+    }
+
+    public void testReadRejectsCorruptIndex() throws Exception {
+        compile().write(mContext, mPack);
+        final File file = getIndexFile();
+        // The entry count follows the magic, the format, the version code, the update time
+        // and the package name
+        final long sizeOffset = 4 + 4 + 4 + 8 + 2 + PACK.length();
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(sizeOffset);
+            out.writeInt(Integer.MAX_VALUE);
+        } finally {
+            out.close();
+        }
+        assertNull(IconPackIndex.read(mContext, mPack));
+
+        compile().write(mContext, mPack);
+        final RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        try {
+            truncated.setLength(file.length() / 2);
+        } finally {
+            truncated.close();
+        }
+        assertNull(IconPackIndex.read(mContext, mPack));
+    }
+
+    /**
+     * Times parsing and compiling the 20,000 entry appfilter, as every load used to, against
+     * reading the stored index. Prints the times rather than asserting on them, as they depend
+     * on the device.
+     */
+    public void testLoadBenchmark() throws Exception {
+        // Warm up both before timing them
+        compile().write(mContext, mPack);
+        IconPackIndex.read(mContext, mPack);
+
+        long t = SystemClock.uptimeMillis();
+        final Map<ComponentName, String> mappings = parse();
+        final long parseTime = SystemClock.uptimeMillis() - t;
+
+        t = SystemClock.uptimeMillis();
+        final IconPackIndex compiled = IconPackIndex.compile(mappings, mResources, "android");
+        final long compileTime = SystemClock.uptimeMillis() - t;
+
+        t = SystemClock.uptimeMillis();
+        compiled.write(mContext, mPack);
+        final long writeTime = SystemClock.uptimeMillis() - t;
+
+        t = SystemClock.uptimeMillis();
+        final IconPackIndex read = IconPackIndex.read(mContext, mPack);
+        final long readTime = SystemClock.uptimeMillis() - t;
+        assertNotNull(read);
+
+        System.out.println("appfilter of " + ENTRIES + " entries: parse " + parseTime
+                + "ms, compile " + compileTime + "ms, write " + writeTime + "ms; read index "
+                + readTime + "ms (" + getIndexFile().length() + " bytes)");
+    }
+}
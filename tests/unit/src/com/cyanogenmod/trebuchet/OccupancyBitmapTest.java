@@ -0,0 +1,253 @@
+package com.cyanogenmod.trebuchet;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks {@link OccupancyBitmap} against the boolean[][] grid searches it replaced in
+ * {@link CellLayout}, on random layouts. Only depends on java.util, so it also runs on a
+ * desktop JVM.
+ */
+public class OccupancyBitmapTest extends TestCase {
+    private static final int LAYOUTS = 500;
+    private static final long SEED = 0x5eedL;
+
+    private static final int BENCHMARK_SIZE = 10;
+    private static final int BENCHMARK_ITERATIONS = 20000;
+
+    private final Random mRandom = new Random(SEED);
+
+    /**
+     * Fills both grids with random items, which may overlap and may stick out of the grid.
+     */
+    private void fillRandomly(OccupancyBitmap bitmap, boolean[][] occupied) {
+        final int items = mRandom.nextInt(bitmap.countX * bitmap.countY / 2 + 1);
+        for (int i = 0; i < items; i++) {
+            final int cellX = mRandom.nextInt(bitmap.countX);
+            final int cellY = mRandom.nextInt(bitmap.countY);
+            final int spanX = 1 + mRandom.nextInt(3);
+            final int spanY = 1 + mRandom.nextInt(3);
+            bitmap.markCells(cellX, cellY, spanX, spanY, true);
+            for (int x = cellX; x < cellX + spanX && x < bitmap.countX; x++) {
+                for (int y = cellY; y < cellY + spanY && y < bitmap.countY; y++) {
+                    occupied[x][y] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The cell by cell probe of the boolean[][] grid, as CellLayout did it, but checking every
+     * cell of the span and keeping the span within the grid.
+     */
+    private static boolean isRegionVacant(boolean[][] occupied, int cellX, int cellY,
+            int spanX, int spanY) {
+        for (int x = cellX; x < cellX + spanX; x++) {
+            for (int y = cellY; y < cellY + spanY; y++) {
+                if (occupied[x][y]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean findVacantCell(int[] vacant, int spanX, int spanY, int xCount,
+            int yCount, boolean[][] occupied) {
+        for (int y = 0; y + spanY <= yCount; y++) {
+            for (int x = 0; x + spanX <= xCount; x++) {
+                if (isRegionVacant(occupied, x, y, spanX, spanY)) {
+                    vacant[0] = x;
+                    vacant[1] = y;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void testGetMatchesGrid() {
+        for (int n = 0; n < LAYOUTS; n++) {
+            final int countX = 1 + mRandom.nextInt(10);
+            final int countY = 1 + mRandom.nextInt(10);
+            OccupancyBitmap bitmap = new OccupancyBitmap(countX, countY);
+            boolean[][] occupied = new boolean[countX][countY];
+            fillRandomly(bitmap, occupied);
+            for (int x = 0; x < countX; x++) {
+                for (int y = 0; y < countY; y++) {
+                    assertEquals("(" + x + ", " + y + ")", occupied[x][y], bitmap.get(x, y));
+                }
+            }
+        }
+    }
+
+    public void testIsRegionVacantMatchesGrid() {
+        for (int n = 0; n < LAYOUTS; n++) {
+            final int countX = 1 + mRandom.nextInt(10);
+            final int countY = 1 + mRandom.nextInt(10);
+            OccupancyBitmap bitmap = new OccupancyBitmap(countX, countY);
+            boolean[][] occupied = new boolean[countX][countY];
+            fillRandomly(bitmap, occupied);
+            for (int spanX = 1; spanX <= countX; spanX++) {
+                for (int spanY = 1; spanY <= countY; spanY++) {
+                    for (int x = 0; x + spanX <= countX; x++) {
+                        for (int y = 0; y + spanY <= countY; y++) {
+                            assertEquals(x + ", " + y + ": " + spanX + ", " + spanY,
+                                    isRegionVacant(occupied, x, y, spanX, spanY),
+                                    bitmap.isRegionVacant(x, y, spanX, spanY));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testIsRegionVacantForBlock() {
+        for (int n = 0; n < LAYOUTS; n++) {
+            final int countX = 1 + mRandom.nextInt(10);
+            final int countY = 1 + mRandom.nextInt(10);
+            OccupancyBitmap bitmap = new OccupancyBitmap(countX, countY);
+            boolean[][] occupied = new boolean[countX][countY];
+            fillRandomly(bitmap, occupied);
+
+            final int spanX = 1 + mRandom.nextInt(countX);
+            final int spanY = 1 + mRandom.nextInt(countY);
+            OccupancyBitmap block = new OccupancyBitmap(countX, countY);
+            boolean[][] blockOccupied = new boolean[countX][countY];
+            for (int x = 0; x < spanX; x++) {
+                for (int y = 0; y < spanY; y++) {
+                    if (mRandom.nextBoolean()) {
+                        block.set(x, y, true);
+                        blockOccupied[x][y] = true;
+                    }
+                }
+            }
+
+            for (int x = 0; x + spanX <= countX; x++) {
+                for (int y = 0; y + spanY <= countY; y++) {
+                    boolean expected = true;
+                    for (int i = 0; i < spanX && expected; i++) {
+                        for (int j = 0; j < spanY; j++) {
+                            if (blockOccupied[i][j] && occupied[x + i][y + j]) {
+                                expected = false;
+                                break;
+                            }
+                        }
+                    }
+                    assertEquals(x + ", " + y, expected, bitmap.isRegionVacant(x, y, block, spanY));
+                }
+            }
+        }
+    }
+
+    public void testFindVacantCellMatchesGrid() {
+        final int[] expected = new int[2];
+        final int[] actual = new int[2];
+        for (int n = 0; n < LAYOUTS; n++) {
+            final int countX = 1 + mRandom.nextInt(10);
+            final int countY = 1 + mRandom.nextInt(10);
+            OccupancyBitmap bitmap = new OccupancyBitmap(countX, countY);
+            boolean[][] occupied = new boolean[countX][countY];
+            fillRandomly(bitmap, occupied);
+            for (int spanX = 1; spanX <= countX + 1; spanX++) {
+                for (int spanY = 1; spanY <= countY + 1; spanY++) {
+                    final String span = spanX + ", " + spanY;
+                    final boolean found = findVacantCell(expected, spanX, spanY, countX, countY,
+                            occupied);
+                    assertEquals(span, found, bitmap.findVacantCell(actual, spanX, spanY));
+                    if (found) {
+                        assertEquals(span, expected[0], actual[0]);
+                        assertEquals(span, expected[1], actual[1]);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testMarkCellsClipsToGrid() {
+        OccupancyBitmap bitmap = new OccupancyBitmap(4, 4);
+        bitmap.markCells(2, 3, 5, 5, true);
+        assertTrue(bitmap.get(2, 3));
+        assertTrue(bitmap.get(3, 3));
+        assertFalse(bitmap.get(1, 3));
+        assertFalse(bitmap.get(3, 2));
+        bitmap.markCells(-1, 0, 2, 2, true);
+        assertFalse(bitmap.get(0, 0));
+        bitmap.markCells(3, 3, 1, 1, false);
+        assertFalse(bitmap.get(3, 3));
+        assertTrue(bitmap.get(2, 3));
+    }
+
+    public void testFullWidthGrid() {
+        OccupancyBitmap bitmap = new OccupancyBitmap(64, 2);
+        final int[] vacant = new int[2];
+        assertTrue(bitmap.findVacantCell(vacant, 64, 2));
+        bitmap.set(63, 1, true);
+        assertFalse(bitmap.isRegionVacant(0, 0, 64, 2));
+        assertTrue(bitmap.findVacantCell(vacant, 64, 1));
+        assertEquals(0, vacant[0]);
+        assertEquals(0, vacant[1]);
+        assertTrue(bitmap.findVacantCell(vacant, 63, 2));
+        assertEquals(0, vacant[0]);
+    }
+
+    /**
+     * Times finding a vacant cell of every span in a 10x10 grid, with both searches. Prints the
+     * times rather than asserting on them, as they depend on the device.
+     */
+    public void testFindVacantCellBenchmark() {
+        final int count = BENCHMARK_SIZE;
+        OccupancyBitmap bitmap = new OccupancyBitmap(count, count);
+        boolean[][] occupied = new boolean[count][count];
+        fillRandomly(bitmap, occupied);
+        final int[] vacant = new int[2];
+
+        // Warm up both searches before timing them
+        int found = runGridSearches(occupied, vacant, BENCHMARK_ITERATIONS / 10)
+                + runBitmapSearches(bitmap, vacant, BENCHMARK_ITERATIONS / 10);
+
+        long t = System.nanoTime();
+        found += runGridSearches(occupied, vacant, BENCHMARK_ITERATIONS);
+        final long gridTime = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        found += runBitmapSearches(bitmap, vacant, BENCHMARK_ITERATIONS);
+        final long bitmapTime = System.nanoTime() - t;
+
+        final int searches = BENCHMARK_ITERATIONS * count * count;
+        System.out.println("findVacantCell " + count + "x" + count + ": boolean[][] "
+                + (gridTime / searches) + "ns, bitmap " + (bitmapTime / searches)
+                + "ns per search (" + found + " found)");
+    }
+
+    private static int runGridSearches(boolean[][] occupied, int[] vacant, int iterations) {
+        final int count = occupied.length;
+        int found = 0;
+        for (int n = 0; n < iterations; n++) {
+            for (int spanX = 1; spanX <= count; spanX++) {
+                for (int spanY = 1; spanY <= count; spanY++) {
+                    if (findVacantCell(vacant, spanX, spanY, count, count, occupied)) {
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private static int runBitmapSearches(OccupancyBitmap bitmap, int[] vacant, int iterations) {
+        final int count = bitmap.countX;
+        int found = 0;
+        for (int n = 0; n < iterations; n++) {
+            for (int spanX = 1; spanX <= count; spanX++) {
+                for (int spanY = 1; spanY <= count; spanY++) {
+                    if (bitmap.findVacantCell(vacant, spanX, spanY)) {
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+}
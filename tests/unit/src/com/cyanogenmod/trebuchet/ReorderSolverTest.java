@@ -0,0 +1,205 @@
+package com.cyanogenmod.trebuchet;
+
+import android.os.Debug;
+
+import com.cyanogenmod.trebuchet.ReorderSolver.CellAndSpan;
+import com.cyanogenmod.trebuchet.ReorderSolver.ItemConfiguration;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link ReorderSolver} finds valid configurations on random layouts, and that
+ * solving a drag over a layout doesn't allocate once the solver exists, which is what keeps
+ * the drag-over path of the workspace free of garbage.
+ */
+public class ReorderSolverTest extends TestCase {
+    private static final int COUNT_X = 4;
+    private static final int COUNT_Y = 4;
+    private static final int CELL_WIDTH = 80;
+    private static final int CELL_HEIGHT = 100;
+    private static final int WIDTH_GAP = 8;
+    private static final int HEIGHT_GAP = 4;
+
+    private static final int LAYOUTS = 300;
+    private static final long SEED = 0x5eedL;
+    private static final int DRAG_MOVES = 200;
+
+    private final Random mRandom = new Random(SEED);
+
+    // The random layout the solver is given a snapshot of
+    private final CellAndSpan[] mItems = new CellAndSpan[COUNT_X * COUNT_Y];
+    private final boolean[] mCanReorder = new boolean[COUNT_X * COUNT_Y];
+    private int mItemCount;
+    private final OccupancyBitmap mOccupied = new OccupancyBitmap(COUNT_X, COUNT_Y);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < mItems.length; i++) {
+            mItems[i] = new CellAndSpan();
+        }
+    }
+
+    /**
+     * Fills the layout with random items that don't overlap, some of which can't be moved.
+     */
+    private void fillRandomly() {
+        mOccupied.clear();
+        mItemCount = 0;
+        final int attempts = mRandom.nextInt(COUNT_X * COUNT_Y);
+        final int[] vacant = new int[2];
+        for (int i = 0; i < attempts; i++) {
+            final int spanX = 1 + mRandom.nextInt(2);
+            final int spanY = 1 + mRandom.nextInt(2);
+            if (!mOccupied.findVacantCell(vacant, spanX, spanY)) {
+                continue;
+            }
+            CellAndSpan c = mItems[mItemCount];
+            c.x = vacant[0];
+            c.y = vacant[1];
+            c.spanX = spanX;
+            c.spanY = spanY;
+            mCanReorder[mItemCount] = mRandom.nextInt(8) != 0;
+            mOccupied.markCells(c.x, c.y, spanX, spanY, true);
+            mItemCount++;
+        }
+    }
+
+    /**
+     * Hands the layout to the solver, the way CellLayout snapshots itself for a reorder.
+     */
+    private void snapshot(ReorderSolver solver) {
+        solver.reset(mItemCount);
+        solver.setGeometry(0, 0, CELL_WIDTH, CELL_HEIGHT, WIDTH_GAP, HEIGHT_GAP);
+        solver.getOccupied().copyFrom(mOccupied);
+        for (int i = 0; i < mItemCount; i++) {
+            final CellAndSpan c = mItems[i];
+            solver.setItem(i, c.x, c.y, c.spanX, c.spanY, mCanReorder[i]);
+        }
+    }
+
+    private static int centerX(int cellX, int spanX) {
+        return cellX * (CELL_WIDTH + WIDTH_GAP) + (spanX * CELL_WIDTH + (spanX - 1) * WIDTH_GAP)
+                / 2;
+    }
+
+    private static int centerY(int cellY, int spanY) {
+        return cellY * (CELL_HEIGHT + HEIGHT_GAP)
+                + (spanY * CELL_HEIGHT + (spanY - 1) * HEIGHT_GAP) / 2;
+    }
+
+    /**
+     * Checks that the items and the dragged item of the solution fit the grid without
+     * overlapping, and that the items that can't be reordered stayed put.
+     */
+    private void assertValid(String layout, ItemConfiguration solution) {
+        assertEquals(layout, mItemCount, solution.count);
+        final OccupancyBitmap cells = new OccupancyBitmap(COUNT_X, COUNT_Y);
+        assertTrue(layout + ": drag outside grid", solution.dragViewX >= 0
+                && solution.dragViewY >= 0
+                && solution.dragViewX + solution.dragViewSpanX <= COUNT_X
+                && solution.dragViewY + solution.dragViewSpanY <= COUNT_Y);
+        cells.markCells(solution.dragViewX, solution.dragViewY, solution.dragViewSpanX,
+                solution.dragViewSpanY, true);
+        for (int i = 0; i < solution.count; i++) {
+            final CellAndSpan c = solution.map[i];
+            final String item = layout + ": item " + i + " " + c;
+            assertEquals(item, mItems[i].spanX, c.spanX);
+            assertEquals(item, mItems[i].spanY, c.spanY);
+            assertTrue(item + " outside grid", c.x >= 0 && c.y >= 0
+                    && c.x + c.spanX <= COUNT_X && c.y + c.spanY <= COUNT_Y);
+            assertTrue(item + " overlaps", cells.isRegionVacant(c.x, c.y, c.spanX, c.spanY));
+            cells.markCells(c.x, c.y, c.spanX, c.spanY, true);
+            if (!mCanReorder[i]) {
+                assertEquals(item + " moved", mItems[i].x, c.x);
+                assertEquals(item + " moved", mItems[i].y, c.y);
+            }
+        }
+    }
+
+    public void testSolutionsAreValid() {
+        final ReorderSolver solver = new ReorderSolver(COUNT_X, COUNT_Y, COUNT_X * COUNT_Y);
+        final int[] direction = new int[2];
+        int solved = 0;
+        for (int n = 0; n < LAYOUTS; n++) {
+            fillRandomly();
+            final int spanX = 1 + mRandom.nextInt(2);
+            final int spanY = 1 + mRandom.nextInt(2);
+            final int cellX = mRandom.nextInt(COUNT_X - spanX + 1);
+            final int cellY = mRandom.nextInt(COUNT_Y - spanY + 1);
+            ReorderSolver.computeDirectionVector(mRandom.nextFloat() - 0.5f,
+                    mRandom.nextFloat() - 0.5f, direction);
+            snapshot(solver);
+            ItemConfiguration solution = solver.solve(centerX(cellX, spanX),
+                    centerY(cellY, spanY), spanX, spanY, spanX, spanY, direction);
+            if (solution != null) {
+                assertValid("layout " + n, solution);
+                solved++;
+            }
+        }
+        assertTrue("solved " + solved, solved > 0);
+    }
+
+    public void testSolvesIntoEmptyLayout() {
+        final ReorderSolver solver = new ReorderSolver(COUNT_X, COUNT_Y, COUNT_X * COUNT_Y);
+        mOccupied.clear();
+        mItemCount = 0;
+        snapshot(solver);
+        ItemConfiguration solution = solver.solve(centerX(1, 2), centerY(2, 2), 2, 2, 2, 2,
+                new int[2]);
+        assertNotNull(solution);
+        assertEquals(1, solution.dragViewX);
+        assertEquals(2, solution.dragViewY);
+        assertEquals(2, solution.dragViewSpanX);
+        assertEquals(2, solution.dragViewSpanY);
+    }
+
+    public void testCancelledSolveReturnsNull() {
+        final ReorderSolver solver = new ReorderSolver(COUNT_X, COUNT_Y, COUNT_X * COUNT_Y);
+        fillRandomly();
+        snapshot(solver);
+        solver.cancel();
+        assertNull(solver.solve(centerX(0, 1), centerY(0, 1), 1, 1, 1, 1, new int[2]));
+    }
+
+    /**
+     * Drags an item across a layout the way the workspace does, snapshotting and solving on
+     * every move, and checks that no object is allocated once the solver has warmed up.
+     */
+    public void testDragOverDoesNotAllocate() {
+        final ReorderSolver solver = new ReorderSolver(COUNT_X, COUNT_Y, COUNT_X * COUNT_Y);
+        fillRandomly();
+        final int[] direction = new int[2];
+        final int[] result = new int[2];
+        final int[] resultSpan = new int[2];
+
+        // Warm up, so that class loading and any lazy state is out of the way
+        dragOver(solver, direction, result, resultSpan, DRAG_MOVES);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        dragOver(solver, direction, result, resultSpan, DRAG_MOVES);
+        final int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        assertEquals("allocations over " + DRAG_MOVES + " moves", 0, allocations);
+    }
+
+    private void dragOver(ReorderSolver solver, int[] direction, int[] result, int[] resultSpan,
+            int moves) {
+        final int width = COUNT_X * (CELL_WIDTH + WIDTH_GAP);
+        final int height = COUNT_Y * (CELL_HEIGHT + HEIGHT_GAP);
+        for (int i = 0; i < moves; i++) {
+            // Sweep back and forth across the layout, as a finger would
+            final int pixelX = (i * 37) % width;
+            final int pixelY = (i * 53) % height;
+            ReorderSolver.computeDirectionVector(pixelX - width / 2, pixelY - height / 2,
+                    direction);
+            snapshot(solver);
+            solver.findNearestArea(pixelX, pixelY, 1, 1, 2, 2, false, result, resultSpan,
+                    solver.getOccupied());
+            solver.solve(pixelX, pixelY, 1, 1, 2, 2, direction);
+        }
+    }
+}
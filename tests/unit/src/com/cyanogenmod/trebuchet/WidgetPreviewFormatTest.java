@@ -0,0 +1,154 @@
+package com.cyanogenmod.trebuchet;
+
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Checks that previews survive being stored and read back by {@link WidgetPreviewLoader}, as
+ * raw pixels or as PNG for the largest ones, and times storing and reading a preview both ways.
+ */
+public class WidgetPreviewFormatTest extends TestCase {
+    // About the size of a 4x2 widget preview on an xhdpi device
+    private static final int PREVIEW_WIDTH = 320;
+    private static final int PREVIEW_HEIGHT = 240;
+    // Large enough that the preview is stored as PNG
+    private static final int LARGE_PREVIEW_WIDTH = 640;
+    private static final int LARGE_PREVIEW_HEIGHT = 480;
+
+    private static final int BENCHMARK_ITERATIONS = 50;
+
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+    /**
+     * A preview like the ones generated for widgets: an opaque gradient with a shadowed frame
+     * and transparent margins.
+     */
+    private static Bitmap makePreview(int width, int height, boolean opaque) {
+        final Bitmap preview = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas c = new Canvas(preview);
+        final Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, width, height, Color.BLUE, Color.YELLOW,
+                Shader.TileMode.CLAMP));
+        if (opaque) {
+            c.drawRect(0, 0, width, height, paint);
+        } else {
+            final int margin = width / 10;
+            c.drawColor(0x40000000);
+            c.drawRect(margin, margin, width - margin, height - margin, paint);
+        }
+        return preview;
+    }
+
+    private static Bitmap makeTarget(Bitmap preview) {
+        return Bitmap.createBitmap(preview.getWidth(), preview.getHeight(),
+                Bitmap.Config.ARGB_8888);
+    }
+
+    public void testRawRoundTrip() {
+        final Bitmap preview = makePreview(PREVIEW_WIDTH, PREVIEW_HEIGHT, false);
+        final ContentValues values = new ContentValues();
+        WidgetPreviewLoader.encodePreview(preview, values);
+        assertEquals(WidgetPreviewLoader.CacheDb.FORMAT_RAW,
+                (int) values.getAsInteger(WidgetPreviewLoader.CacheDb.COLUMN_FORMAT));
+
+        final Bitmap target = makeTarget(preview);
+        final Bitmap decoded = WidgetPreviewLoader.decodePreview(
+                values.getAsByteArray(WidgetPreviewLoader.CacheDb.COLUMN_PREVIEW_BITMAP),
+                WidgetPreviewLoader.CacheDb.FORMAT_RAW, target, mOptions);
+        assertSame(target, decoded);
+        assertTrue(preview.sameAs(decoded));
+    }
+
+    public void testRawRejectsOtherSizes() {
+        final Bitmap preview = makePreview(PREVIEW_WIDTH, PREVIEW_HEIGHT, false);
+        final ContentValues values = new ContentValues();
+        WidgetPreviewLoader.encodePreview(preview, values);
+        final Bitmap target = Bitmap.createBitmap(PREVIEW_WIDTH / 2, PREVIEW_HEIGHT,
+                Bitmap.Config.ARGB_8888);
+        assertNull(WidgetPreviewLoader.decodePreview(
+                values.getAsByteArray(WidgetPreviewLoader.CacheDb.COLUMN_PREVIEW_BITMAP),
+                WidgetPreviewLoader.CacheDb.FORMAT_RAW, target, mOptions));
+    }
+
+    public void testLargePreviewsAreStoredAsPng() {
+        final Bitmap preview = makePreview(LARGE_PREVIEW_WIDTH, LARGE_PREVIEW_HEIGHT, true);
+        final ContentValues values = new ContentValues();
+        WidgetPreviewLoader.encodePreview(preview, values);
+        assertEquals(WidgetPreviewLoader.CacheDb.FORMAT_PNG,
+                (int) values.getAsInteger(WidgetPreviewLoader.CacheDb.COLUMN_FORMAT));
+
+        final Bitmap decoded = WidgetPreviewLoader.decodePreview(
+                values.getAsByteArray(WidgetPreviewLoader.CacheDb.COLUMN_PREVIEW_BITMAP),
+                WidgetPreviewLoader.CacheDb.FORMAT_PNG, makeTarget(preview), mOptions);
+        assertNotNull(decoded);
+        assertTrue(preview.sameAs(decoded));
+    }
+
+    /**
+     * Times storing and reading back a preview as raw pixels, and as PNG the way every preview
+     * used to be stored. Prints the times rather than asserting on them, as they depend on the
+     * device.
+     */
+    public void testFormatBenchmark() {
+        final Bitmap preview = makePreview(PREVIEW_WIDTH, PREVIEW_HEIGHT, false);
+        final Bitmap target = makeTarget(preview);
+        final ContentValues values = new ContentValues();
+
+        // Warm up both formats before timing them
+        WidgetPreviewLoader.encodePreview(preview, values);
+        final byte[] raw = values.getAsByteArray(WidgetPreviewLoader.CacheDb.COLUMN_PREVIEW_BITMAP);
+        final byte[] png = compressPng(preview);
+        WidgetPreviewLoader.decodePreview(raw, WidgetPreviewLoader.CacheDb.FORMAT_RAW, target,
+                mOptions);
+        WidgetPreviewLoader.decodePreview(png, WidgetPreviewLoader.CacheDb.FORMAT_PNG, target,
+                mOptions);
+
+        long t = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            values.clear();
+            WidgetPreviewLoader.encodePreview(preview, values);
+        }
+        final long rawWriteTime = (System.nanoTime() - t) / BENCHMARK_ITERATIONS;
+
+        t = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            WidgetPreviewLoader.decodePreview(raw, WidgetPreviewLoader.CacheDb.FORMAT_RAW,
+                    target, mOptions);
+        }
+        final long rawReadTime = (System.nanoTime() - t) / BENCHMARK_ITERATIONS;
+
+        t = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            compressPng(preview);
+        }
+        final long pngWriteTime = (System.nanoTime() - t) / BENCHMARK_ITERATIONS;
+
+        t = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ITERATIONS; n++) {
+            WidgetPreviewLoader.decodePreview(png, WidgetPreviewLoader.CacheDb.FORMAT_PNG,
+                    target, mOptions);
+        }
+        final long pngReadTime = (System.nanoTime() - t) / BENCHMARK_ITERATIONS;
+
+        System.out.println("preview " + PREVIEW_WIDTH + "x" + PREVIEW_HEIGHT + ": raw "
+                + raw.length + " bytes, write " + (rawWriteTime / 1000) + "us, read "
+                + (rawReadTime / 1000) + "us; png " + png.length + " bytes, write "
+                + (pngWriteTime / 1000) + "us, read " + (pngReadTime / 1000) + "us");
+    }
+
+    private static byte[] compressPng(Bitmap preview) {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        preview.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        return stream.toByteArray();
+    }
+}